@@ -0,0 +1,390 @@
+package jp.co.cyberagent.hive.udtf.jsonquery;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.hive.ql.exec.MapredContext;
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.SerDeUtils;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
+
+/**
+ * Replays a local file of JSON lines through {@link JsonQueryUDTF}, without a cluster, and reports the throughput.
+ *
+ * The file is split into as many ranges as threads, and each thread runs its own UDTF instance over its range, reading
+ * the file through memory-mapped buffers.
+ *
+ * <pre>
+ * java -cp "hive-jq-udtf-v3.jar:$(hadoop classpath):$HIVE_HOME/lib/*" jp.co.cyberagent.hive.udtf.jsonquery.v3.JsonQueryRunner \
+ *     [--threads N] [--output FILE] [--conf KEY=VALUE]... INPUT JQ TYPE [TYPE...]
+ * </pre>
+ */
+public class JsonQueryRunner {
+	// lines must fit in a window. the windows are remapped as the threads proceed.
+	private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+	public static class Options {
+		public int threads = 1;
+		public String output;
+		public final List<String> conf = new ArrayList<>();
+		public String input;
+		public String jq;
+		public final List<String> types = new ArrayList<>();
+
+		public static Options parse(final String[] args) {
+			final Options options = new Options();
+			int i = 0;
+			for (; i < args.length && args[i].startsWith("--"); ++i) {
+				switch (args[i]) {
+					case "--threads":
+						options.threads = Integer.parseInt(args[++i]);
+						if (options.threads < 1)
+							throw new IllegalArgumentException("--threads must be at least 1: " + options.threads);
+						break;
+					case "--output":
+						options.output = args[++i];
+						break;
+					case "--conf":
+						options.conf.add(args[++i]);
+						break;
+					default:
+						throw new IllegalArgumentException("unknown option: " + args[i]);
+				}
+			}
+			if (args.length - i < 3)
+				throw new IllegalArgumentException("INPUT, JQ and TYPE are required");
+			options.input = args[i++];
+			options.jq = args[i++];
+			options.types.addAll(Arrays.asList(args).subList(i, args.length));
+			return options;
+		}
+	}
+
+	public static class Report {
+		public long rows;
+		public long outputs;
+		public long errors;
+		// the figures below exclude writing --output, which is measured separately.
+		public long allocatedBytes;
+		public long elapsedNanos;
+		public final Histogram latencies = new Histogram();
+
+		public long outputAllocatedBytes;
+		public long outputNanos;
+
+		private void add(final Report other) {
+			rows += other.rows;
+			outputs += other.outputs;
+			errors += other.errors;
+			allocatedBytes = allocatedBytes < 0 || other.allocatedBytes < 0 ? -1 : allocatedBytes + other.allocatedBytes;
+			// the threads run in parallel, so the slowest one takes as long as the whole run.
+			elapsedNanos = Math.max(elapsedNanos, other.elapsedNanos);
+			latencies.add(other.latencies);
+			outputAllocatedBytes = outputAllocatedBytes < 0 || other.outputAllocatedBytes < 0 ? -1 : outputAllocatedBytes + other.outputAllocatedBytes;
+			outputNanos += other.outputNanos;
+		}
+
+		private long percentile(final double p) {
+			return latencies.percentile(p);
+		}
+
+		public void print(final PrintStream out) {
+			final double seconds = elapsedNanos / 1e9;
+			out.printf("rows:            %d%n", rows);
+			out.printf("outputs:         %d%n", outputs);
+			out.printf("errors:          %d (%.3f%%)%n", errors, rows == 0 ? 0.0 : 100.0 * errors / rows);
+			out.printf("elapsed:         %.3f s%n", seconds);
+			out.printf("rows/sec:        %.0f%n", rows / seconds);
+			out.printf("outputs/sec:     %.0f%n", outputs / seconds);
+			if (allocatedBytes >= 0)
+				out.printf("allocated/row:   %.0f bytes%n", rows == 0 ? 0.0 : (double) allocatedBytes / rows);
+			out.printf("latency (us):    p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+					percentile(0.5) / 1e3, percentile(0.9) / 1e3, percentile(0.99) / 1e3, percentile(0.999) / 1e3, percentile(1.0) / 1e3);
+			if (outputNanos > 0) {
+				out.printf("output:          %.3f s (all threads)%n", outputNanos / 1e9);
+				if (outputAllocatedBytes >= 0)
+					out.printf("output/row:      %.0f bytes allocated%n", rows == 0 ? 0.0 : (double) outputAllocatedBytes / rows);
+			}
+		}
+	}
+
+	/**
+	 * A histogram of latencies in fixed memory, however many rows are replayed. Each power of two is split into
+	 * 2^SUB_BUCKET_BITS linear buckets, so a percentile is reported with a relative error below 1/32.
+	 */
+	public static class Histogram {
+		private static final int SUB_BUCKET_BITS = 5;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final long[] counts = new long[64 * SUB_BUCKETS];
+		private long count;
+		private long max;
+
+		private static int index(final long value) {
+			if (value < SUB_BUCKETS)
+				return (int) value;
+			final int exp = 63 - Long.numberOfLeadingZeros(value);
+			final int sub = (int) (value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+			return ((exp - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + sub;
+		}
+
+		// the largest value which falls into the bucket.
+		private static long upperBound(final int index) {
+			if (index < SUB_BUCKETS)
+				return index;
+			final int exp = (index >>> SUB_BUCKET_BITS) + SUB_BUCKET_BITS - 1;
+			final long lower = (1L << exp) | ((long) (index & (SUB_BUCKETS - 1)) << (exp - SUB_BUCKET_BITS));
+			return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+		}
+
+		void record(final long value) {
+			++counts[index(Math.max(0, value))];
+			++count;
+			max = Math.max(max, value);
+		}
+
+		void add(final Histogram other) {
+			for (int i = 0; i < counts.length; ++i)
+				counts[i] += other.counts[i];
+			count += other.count;
+			max = Math.max(max, other.max);
+		}
+
+		public long count() {
+			return count;
+		}
+
+		/**
+		 * @return an upper bound of the p-th quantile (0 &lt; p &lt;= 1), which is exact for the maximum.
+		 */
+		public long percentile(final double p) {
+			if (count == 0)
+				return 0;
+			final long rank = Math.max(1, (long) Math.ceil(p * count));
+			long seen = 0;
+			for (int i = 0; i < counts.length; ++i) {
+				seen += counts[i];
+				if (seen >= rank)
+					return Math.min(upperBound(i), max);
+			}
+			return max;
+		}
+	}
+
+	private static long allocatedBytes() {
+		final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+		final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+		if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+		return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static ObjectInspector toConstantOI(final String text) {
+		return PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text(text));
+	}
+
+	/**
+	 * @return the offset of the first line which starts at or after pos.
+	 */
+	private static long alignToLine(final FileChannel channel, final long pos) throws IOException {
+		if (pos == 0)
+			return 0;
+		final long size = channel.size();
+		for (long base = pos - 1; base < size; base += WINDOW_SIZE) {
+			final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(WINDOW_SIZE, size - base));
+			for (int i = 0; i < buf.limit(); ++i)
+				if (buf.get(i) == '\n')
+					return base + i + 1;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes the results buffered while a row was processed, measuring the time and the allocation apart from the row.
+	 */
+	private static void write(final Writer writer, final List<Object> results, final StructObjectInspector oi, final Report report) throws IOException {
+		final long start = System.nanoTime();
+		final long allocatedBefore = allocatedBytes();
+		for (final Object result : results) {
+			writer.write(SerDeUtils.getJSONString(result, oi));
+			writer.write('\n');
+		}
+		results.clear();
+		final long allocatedAfter = allocatedBytes();
+		report.outputAllocatedBytes = report.outputAllocatedBytes < 0 || allocatedBefore < 0 || allocatedAfter < 0
+				? -1 : report.outputAllocatedBytes + allocatedAfter - allocatedBefore;
+		report.outputNanos += System.nanoTime() - start;
+	}
+
+	private static class Worker implements Callable<Report> {
+		private final Options options;
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final String output;
+
+		Worker(final Options options, final FileChannel channel, final long start, final long end, final String output) {
+			this.options = options;
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.output = output;
+		}
+
+		@Override
+		public Report call() throws Exception {
+			final JobConf conf = new JobConf(false);
+			for (final String kv : options.conf) {
+				final int eq = kv.indexOf('=');
+				if (eq < 0)
+					throw new IllegalArgumentException("--conf must be KEY=VALUE: " + kv);
+				conf.set(kv.substring(0, eq), kv.substring(eq + 1));
+			}
+
+			final JsonQueryUDTF udtf = new JsonQueryUDTF();
+			udtf.configure(MapredContext.init(true, conf));
+
+			final List<ObjectInspector> args = new ArrayList<>();
+			args.add(PrimitiveObjectInspectorFactory.writableStringObjectInspector);
+			args.add(toConstantOI(options.jq));
+			for (final String type : options.types)
+				args.add(toConstantOI(type));
+			final StructObjectInspector oi = udtf.initialize(args.toArray(new ObjectInspector[0]));
+
+			final Report report = new Report();
+			try (final Writer writer = output == null ? null : new BufferedWriter(new OutputStreamWriter(
+					Files.newOutputStream(Paths.get(output)), StandardCharsets.UTF_8))) {
+				// results are written after each row, so that the latency and the allocation of the row do not include them.
+				final List<Object> results = new ArrayList<>();
+				udtf.setCollector(new Collector() {
+					@Override
+					public void collect(final Object row) throws HiveException {
+						++report.outputs;
+						if (writer != null)
+							results.add(row);
+					}
+				});
+
+				final Text text = new Text();
+				final Object[] row = new Object[] { text };
+				byte[] line = new byte[4096];
+
+				final long allocatedBefore = allocatedBytes();
+				final long startNanos = System.nanoTime();
+
+				long pos = start;
+				while (pos < end) {
+					final long size = Math.min(WINDOW_SIZE, channel.size() - pos);
+					final boolean last = pos + size == channel.size();
+					final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+
+					int lineStart = 0;
+					for (int i = 0; i <= size && pos + lineStart < end; ++i) {
+						if (i < size ? buf.get(i) != '\n' : !last)
+							continue;
+						// i is at a newline, or at the end of a file which does not end with a newline.
+						int length = i - lineStart;
+						if (length > 0 && buf.get(lineStart + length - 1) == '\r')
+							--length;
+						if (length > 0) {
+							if (line.length < length)
+								line = new byte[Math.max(length, line.length * 2)];
+							buf.position(lineStart);
+							buf.get(line, 0, length);
+							text.set(line, 0, length);
+
+							final long rowStart = System.nanoTime();
+							udtf.process(row);
+							report.latencies.record(System.nanoTime() - rowStart);
+							++report.rows;
+							if (!results.isEmpty())
+								write(writer, results, oi, report);
+						}
+						lineStart = i + 1;
+					}
+
+					if (lineStart == 0 && !last)
+						throw new IOException("a line at offset " + pos + " is longer than " + WINDOW_SIZE + " bytes");
+					pos += Math.min(lineStart, size);
+				}
+
+				report.elapsedNanos = System.nanoTime() - startNanos - report.outputNanos;
+				final long allocatedAfter = allocatedBytes();
+				report.allocatedBytes = allocatedBefore < 0 || allocatedAfter < 0 || report.outputAllocatedBytes < 0
+						? -1 : allocatedAfter - allocatedBefore - report.outputAllocatedBytes;
+				report.errors = udtf.inputErrors();
+			} finally {
+				udtf.close();
+			}
+			return report;
+		}
+	}
+
+	public static Report run(final Options options) throws IOException, InterruptedException, ExecutionException {
+		try (final FileChannel channel = FileChannel.open(new File(options.input).toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			final long[] boundaries = new long[options.threads + 1];
+			for (int t = 0; t < options.threads; ++t)
+				boundaries[t] = alignToLine(channel, size * t / options.threads);
+			boundaries[options.threads] = size;
+
+			final ExecutorService executor = Executors.newFixedThreadPool(options.threads);
+			try {
+				final List<Future<Report>> futures = new ArrayList<>();
+				for (int t = 0; t < options.threads; ++t) {
+					final String output = options.output == null ? null : options.threads == 1 ? options.output : options.output + "." + t;
+					futures.add(executor.submit(new Worker(options, channel, boundaries[t], boundaries[t + 1], output)));
+				}
+
+				final Report report = new Report();
+				for (final Future<Report> future : futures)
+					report.add(future.get());
+				return report;
+			} finally {
+				executor.shutdownNow();
+				executor.awaitTermination(1, TimeUnit.MINUTES);
+			}
+		}
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Options options;
+		try {
+			options = Options.parse(args);
+		} catch (final IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println("usage: " + JsonQueryRunner.class.getName() + " [--threads N] [--output FILE] [--conf KEY=VALUE]... INPUT JQ TYPE [TYPE...]");
+			System.exit(2);
+			return;
+		}
+		run(options).print(System.out);
+	}
+}
@@ -0,0 +1,156 @@
+package jp.co.cyberagent.hive.udtf.jsonquery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.AbstractSerDe;
+import org.apache.hadoop.hive.serde2.ColumnProjectionUtils;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.SerDeStats;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfo;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.InputParser;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.JsonQueryConf;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.KeyDictionary;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.Limit;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.LimitExceededException;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.ObjectInspectors;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.ResultObjectMarshaller;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins.Builtins;
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Scope;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+/**
+ * A read-only SerDe which runs the jq program in the {@value #JQ} table property on each line and converts the first
+ * result into a row, in the same way as {@code jq(JSON, JQ, FIELD_1:TYPE_1, ..., FIELD_N:TYPE_N)} does.
+ */
+public class JsonQuerySerDe extends AbstractSerDe {
+	public static final String JQ = "jq.query";
+
+	private JsonQuery jq;
+	private ResultObjectMarshaller marshaller;
+	private JsonQueryConf conf;
+	private InputParser parser;
+
+	// null if all columns are read.
+	private boolean[] projection;
+
+	// scope is created per instance because Scope is not thread-safe.
+	private Scope scope;
+
+	@Override
+	public void initialize(final Configuration configuration, final Properties tbl) throws SerDeException {
+		final String query = tbl.getProperty(JQ);
+		if (query == null)
+			throw new SerDeException(JQ + " must be set in the table properties.");
+
+		try {
+			this.jq = JsonQuery.compile(query);
+		} catch (final JsonQueryException e) {
+			throw new SerDeException(JQ + " is invalid: " + e.getMessage());
+		}
+
+		final String columnsProperty = tbl.getProperty(serdeConstants.LIST_COLUMNS);
+		final String typesProperty = tbl.getProperty(serdeConstants.LIST_COLUMN_TYPES);
+		if (columnsProperty == null || typesProperty == null)
+			throw new SerDeException(serdeConstants.LIST_COLUMNS + " and " + serdeConstants.LIST_COLUMN_TYPES + " must be set in the table properties.");
+
+		final List<String> columns = Arrays.asList(columnsProperty.split(","));
+		final List<TypeInfo> types = TypeInfoUtils.getTypeInfosFromTypeString(typesProperty);
+		if (columns.size() != types.size())
+			throw new SerDeException("The number of columns (" + columns.size() + ") does not match the number of column types (" + types.size() + ").");
+		final List<ObjectInspector> inspectors = new ArrayList<>(types.size());
+		for (final TypeInfo type : types) {
+			try {
+				inspectors.add(ObjectInspectors.newObjectInspectorFromHiveType(type.getTypeName()));
+			} catch (final IllegalArgumentException e) {
+				throw new SerDeException("Can't use \"" + type.getTypeName() + "\" as a column type. " + e.getMessage());
+			}
+		}
+
+		this.conf = JsonQueryConf.of(configuration);
+		// the metastore lowercases column names, so that {userId: .userId} would never match the userid column otherwise.
+		this.marshaller = new ResultObjectMarshaller(false, ObjectInspectorFactory.getStandardStructObjectInspector(columns, inspectors),
+				conf.coercion, conf.internKeysMax > 0 ? new KeyDictionary(conf.internKeysMax) : null, true);
+		this.parser = new InputParser(conf);
+		this.scope = new Scope();
+		if (conf.builtinsOptimized)
+			Builtins.register(scope);
+
+		this.projection = null;
+		if (configuration != null && !ColumnProjectionUtils.isReadAllColumns(configuration)) {
+			this.projection = new boolean[columns.size()];
+			for (final Integer id : ColumnProjectionUtils.getReadColumnIDs(configuration))
+				if (id < projection.length)
+					projection[id] = true;
+		}
+	}
+
+	@Override
+	public Object deserialize(final Writable blob) throws SerDeException {
+		if (!(blob instanceof Text))
+			throw new SerDeException(getClass().getSimpleName() + " expects Text, but got " + blob.getClass().getName());
+		final Text jsonText = (Text) blob;
+
+		JsonNode json;
+		JsonNode error;
+		try {
+			json = parser.parse(jsonText);
+			error = NullNode.getInstance();
+		} catch (final LimitExceededException e) {
+			if (e.action == Limit.Action.FAIL)
+				throw new SerDeException(e.getMessage());
+			if (e.action == Limit.Action.TRUNCATE)
+				return marshaller.marshal(null, projection); // a SerDe can't drop a row, so return a row of NULLs.
+			json = NullNode.getInstance();
+			error = parser.newErrorNode(e, jsonText);
+		} catch (final Exception e) {
+			json = NullNode.getInstance();
+			error = parser.newErrorNode(e, jsonText);
+		}
+
+		scope.setValue("error", error);
+
+		final List<JsonNode> outs;
+		try {
+			outs = jq.apply(scope, json);
+		} catch (final Exception e) {
+			throw new SerDeException("jq returned an error \"" + e.getMessage() + "\" from input: " + jsonText);
+		}
+
+		return marshaller.marshal(outs.isEmpty() ? null : outs.get(0), projection);
+	}
+
+	@Override
+	public ObjectInspector getObjectInspector() throws SerDeException {
+		return marshaller.objectInspector();
+	}
+
+	@Override
+	public Class<? extends Writable> getSerializedClass() {
+		return Text.class;
+	}
+
+	@Override
+	public Writable serialize(final Object obj, final ObjectInspector objInspector) throws SerDeException {
+		throw new SerDeException(getClass().getSimpleName() + " is read-only.");
+	}
+
+	@Override
+	public SerDeStats getSerDeStats() {
+		return null;
+	}
+}
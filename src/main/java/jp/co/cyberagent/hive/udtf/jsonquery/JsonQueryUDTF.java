@@ -2,67 +2,120 @@ package jp.co.cyberagent.hive.udtf.jsonquery;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.hive.ql.exec.Description;
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.exec.UDFArgumentException;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
+import org.apache.hadoop.hive.serde2.objectinspector.ConstantObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.StringObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableConstantStringObjectInspector;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.Reporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
-import com.fasterxml.jackson.annotation.JsonProperty;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.JsonParser;
-import com.fasterxml.jackson.core.JsonParser.Feature;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.NullNode;
 
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.InputParser;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.JsonQueryConf;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.KeyDictionary;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.Limit;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.LimitExceededException;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.NumericCoercion;
 import jp.co.cyberagent.hive.udtf.jsonquery.internal.ObjectInspectors;
 import jp.co.cyberagent.hive.udtf.jsonquery.internal.Pair;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.PooledBufferRecycler;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.Profiler;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.QueryCache;
 import jp.co.cyberagent.hive.udtf.jsonquery.internal.ResultObjectMarshaller;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins.Builtins;
 import net.thisptr.jackson.jq.JsonQuery;
 import net.thisptr.jackson.jq.Scope;
 import net.thisptr.jackson.jq.exception.JsonQueryException;
 
-@Description(name = "jq", value = "_FUNC_(JSON, 'JQ', 'TYPE'), _FUNC_(JSON, 'JQ', 'FIELD_1:TYPE_1', ..., 'FIELD_N:TYPE_N') - jq for hive")
+@Description(name = "jq", value = "_FUNC_(JSON, JQ, 'TYPE'), _FUNC_(JSON, JQ, 'FIELD_1:TYPE_1', ..., 'FIELD_N:TYPE_N') - jq for hive")
 public class JsonQueryUDTF extends GenericUDTF {
+	private static final Logger LOG = LoggerFactory.getLogger(JsonQueryUDTF.class);
 
+	static final String COUNTER_GROUP = "jq";
+	private static final int PROFILE_COUNTERS = 10;
+	private static final int PROFILE_COUNTER_NAME_LENGTH = 60;
+
+	// either jq is set for a constant JQ, or jqIn and queries are set for a non-constant JQ.
 	private transient JsonQuery jq;
+	private transient StringObjectInspector jqIn;
+	private transient QueryCache queries;
+	// null unless jq.profile is enabled, in which case the programs are instrumented.
+	private transient Profiler profiler;
+
 	private transient StringObjectInspector in;
 	private transient ResultObjectMarshaller marshaller;
 
-	// mapper is created per instance because it has costly synchronized block inside which causes heavy lock contention
-	private transient ObjectMapper mapper;
+	// set by configure(), which Hive calls only at task runtime and always before initialize().
+	private transient JsonQueryConf conf;
+	private transient Reporter reporter;
+
+	private transient InputParser parser;
+
+	private transient long[] limitExceeded;
+	// number of inputs which were routed to $error.
+	private transient long inputErrors;
+
 	// scope is created per instance because Scope is not thread-safe.
 	private transient Scope scope;
 
 	private StructObjectInspector initialize(final ObjectInspector jsonArg, final ObjectInspector jqArg, final List<ObjectInspector> nameAndTypeArgs) throws UDFArgumentException {
 		this.in = Arguments.asString(jsonArg, "JSON");
 
-		try {
-			this.jq = JsonQuery.compile(Arguments.asConstantNonNullString(jqArg, "JQ"));
-		} catch (final JsonQueryException e) {
-			throw new UDFArgumentException("JQ is invalid: " + e.getMessage());
+		if (this.conf == null)
+			this.conf = JsonQueryConf.DEFAULT;
+
+		this.profiler = conf.profile ? new Profiler(conf.profileSampleInterval) : null;
+
+		if (jqArg instanceof ConstantObjectInspector) {
+			try {
+				this.jq = JsonQuery.compile(Arguments.asConstantNonNullString(jqArg, "JQ"));
+			} catch (final JsonQueryException e) {
+				throw new UDFArgumentException("JQ is invalid: " + e.getMessage());
+			}
+			if (profiler != null)
+				this.jq = profiler.instrument(jq);
+		} else {
+			this.jqIn = Arguments.asString(jqArg, "JQ");
+			this.queries = new QueryCache(conf.dynamicCacheSize, profiler);
 		}
 
-		this.marshaller = ResultObjectMarshallers.create(Arguments.asConstantNonNullStrings(nameAndTypeArgs, "TYPE or NAME:TYPE"));
+		this.marshaller = ResultObjectMarshallers.create(Arguments.asConstantNonNullStrings(nameAndTypeArgs, "TYPE or NAME:TYPE"),
+				conf.coercion, conf.internKeysMax > 0 ? new KeyDictionary(conf.internKeysMax) : null);
 
 		this.scope = new Scope();
-		this.mapper = new ObjectMapper(new JsonFactory().enable(Feature.ALLOW_UNQUOTED_CONTROL_CHARS));
+		if (conf.builtinsOptimized)
+			Builtins.register(scope);
+		this.parser = new InputParser(conf);
+
+		this.limitExceeded = new long[Limit.values().length];
 
 		return marshaller.objectInspector();
 	}
 
+	@Override
+	public void configure(final MapredContext context) {
+		this.conf = JsonQueryConf.of(context.getJobConf());
+		this.reporter = context.getReporter();
+	}
+
 	@Override
 	public StructObjectInspector initialize(ObjectInspector[] args) throws UDFArgumentException {
 		if (args.length < 3)
@@ -70,35 +123,74 @@ public class JsonQueryUDTF extends GenericUDTF {
 		return initialize(args[0], args[1], Arrays.asList(Arrays.copyOfRange(args, 2, args.length)));
 	}
 
+	private List<JsonNode> apply(final JsonQuery jq, final JsonNode json, final JsonNode error, final Text jsonText) throws HiveException {
+		scope.setValue("error", error);
+		try {
+			return jq.apply(scope, json);
+		} catch (final Exception e) {
+			throw new HiveException("jq returned an error \"" + e.getMessage() + "\" from input: " + jsonText);
+		}
+	}
+
 	@Override
 	public void process(Object[] o) throws HiveException {
-		final String jsonText = in.getPrimitiveJavaObject(o[0]);
+		final JsonQuery jq;
+		if (this.jq != null) {
+			jq = this.jq;
+		} else {
+			final String program = jqIn.getPrimitiveJavaObject(o[1]);
+			if (program == null)
+				return;
+			try {
+				jq = queries.get(program);
+			} catch (final JsonQueryException e) {
+				if (conf.dynamicSkipInvalid)
+					return;
+				throw new HiveException("JQ is invalid: " + e.getMessage() + " in program: " + program);
+			}
+		}
+
+		final Text jsonText = in.getPrimitiveWritableObject(o[0]);
 
 		JsonNode json;
 		JsonNode error;
 		try {
-			if (jsonText == null) {
-				json = NullNode.getInstance();
-			} else {
-				try (final JsonParser parser = mapper.getFactory().createParser(jsonText)) {
-					json = mapper.readTree(parser);
-					if (parser.nextToken() != null)
-						throw new JsonParseException(parser, "trailing characters");
-				}
-			}
+			json = parser.parse(jsonText);
 			error = NullNode.getInstance();
+		} catch (final LimitExceededException e) {
+			++limitExceeded[e.limit.ordinal()];
+			if (e.action == Limit.Action.FAIL)
+				throw new HiveException(e.getMessage());
+			if (e.action == Limit.Action.TRUNCATE)
+				return; // nothing meaningful is left of a truncated JSON, so the row is dropped.
+			++inputErrors;
+			json = NullNode.getInstance();
+			error = parser.newErrorNode(e, jsonText);
 		} catch (final Exception e) {
+			++inputErrors;
 			json = NullNode.getInstance();
-			error = mapper.valueToTree(new ErrorObject(e.getMessage(), e.getClass().getName(), jsonText));
+			error = parser.newErrorNode(e, jsonText);
 		}
 
-		scope.setValue("error", error);
-
-		final List<JsonNode> outs;
-		try {
-			outs = jq.apply(scope, json);
-		} catch (final Exception e) {
-			throw new HiveException("jq returned an error \"" + e.getMessage() + "\" from input: " + jsonText);
+		List<JsonNode> outs = apply(jq, json, error, jsonText);
+
+		final long maxOutputs = conf.limit(Limit.OUTPUTS);
+		if (outs.size() > maxOutputs) {
+			++limitExceeded[Limit.OUTPUTS.ordinal()];
+			final LimitExceededException e = new LimitExceededException(Limit.OUTPUTS, conf.limitAction(Limit.OUTPUTS), outs.size(), maxOutputs);
+			switch (e.action) {
+				case FAIL:
+					throw new HiveException(e.getMessage() + " from input: " + jsonText);
+				case TRUNCATE:
+					outs = outs.subList(0, (int) maxOutputs);
+					break;
+				case ERROR:
+					++inputErrors;
+					outs = apply(jq, NullNode.getInstance(), parser.newErrorNode(e, jsonText), jsonText);
+					if (outs.size() > maxOutputs)
+						throw new HiveException(e.getMessage() + " while handling $error from input: " + jsonText);
+					break;
+			}
 		}
 
 		for (final JsonNode n : outs) {
@@ -106,29 +198,103 @@ public class JsonQueryUDTF extends GenericUDTF {
 		}
 	}
 
+	long inputErrors() {
+		return inputErrors;
+	}
+
+	Profiler profiler() {
+		return profiler;
+	}
+
+	QueryCache queryCache() {
+		return queries;
+	}
+
+	PooledBufferRecycler bufferRecycler() {
+		return parser.factory().recycler();
+	}
+
 	@Override
 	public String toString() {
 		return "jq";
 	}
 
-	@Override
-	public void close() throws HiveException {}
+	private void reportProfile() {
+		final List<Profiler.Entry> entries = new ArrayList<>(profiler.entries());
+		Collections.sort(entries, new Comparator<Profiler.Entry>() {
+			@Override
+			public int compare(final Profiler.Entry a, final Profiler.Entry b) {
+				return Long.compare(b.estimatedNanos(), a.estimatedNanos());
+			}
+		});
 
-	@JsonIgnoreProperties(ignoreUnknown = true)
-	private static class ErrorObject {
-		@JsonProperty("message")
-		public String message;
+		final StringBuilder builder = new StringBuilder("jq profile (time is estimated from samples and includes sub-expressions):");
+		for (final Profiler.Entry entry : entries) {
+			builder.append(String.format("%n  %10d ms %12d calls %12d outputs  %s",
+					TimeUnit.NANOSECONDS.toMillis(entry.estimatedNanos()), entry.calls(), entry.outputs(), entry.expression));
+		}
+		LOG.info(builder.toString());
+
+		if (reporter == null)
+			return;
+		// hadoop limits the number and the length of counters, so only the most expensive expressions are reported.
+		for (int i = 0; i < Math.min(PROFILE_COUNTERS, entries.size()); ++i) {
+			final Profiler.Entry entry = entries.get(i);
+			final String name = entry.expression.length() > PROFILE_COUNTER_NAME_LENGTH
+					? entry.expression.substring(0, PROFILE_COUNTER_NAME_LENGTH - 3) + "..."
+					: entry.expression;
+			reporter.incrCounter(COUNTER_GROUP + " profile (ms)", name, TimeUnit.NANOSECONDS.toMillis(entry.estimatedNanos()));
+		}
+	}
 
-		@JsonProperty("class")
-		public String clazz;
+	@Override
+	public void close() throws HiveException {
+		if (parser == null)
+			return;
+
+		for (final Limit limit : Limit.values()) {
+			if (limitExceeded[limit.ordinal()] == 0)
+				continue;
+			LOG.warn("{} was exceeded by {} rows", limit.key, limitExceeded[limit.ordinal()]);
+			if (reporter != null)
+				reporter.incrCounter(COUNTER_GROUP, "LIMIT_" + limit.name() + "_EXCEEDED", limitExceeded[limit.ordinal()]);
+		}
+
+		if (reporter != null)
+			reporter.incrCounter(COUNTER_GROUP, "INPUT_ERRORS", inputErrors);
+
+		if (profiler != null)
+			reportProfile();
+
+		if (queries != null) {
+			LOG.info("jq query cache: hits={}, failure hits={}, misses={}, failures={}, compile time={}ms",
+					queries.hits(), queries.failureHits(), queries.misses(), queries.failures(), TimeUnit.NANOSECONDS.toMillis(queries.compileNanos()));
+			if (reporter != null) {
+				reporter.incrCounter(COUNTER_GROUP, "QUERY_CACHE_HITS", queries.hits());
+				reporter.incrCounter(COUNTER_GROUP, "QUERY_CACHE_FAILURE_HITS", queries.failureHits());
+				reporter.incrCounter(COUNTER_GROUP, "QUERY_CACHE_MISSES", queries.misses());
+				reporter.incrCounter(COUNTER_GROUP, "QUERY_COMPILE_FAILURES", queries.failures());
+				reporter.incrCounter(COUNTER_GROUP, "QUERY_COMPILE_MILLIS", TimeUnit.NANOSECONDS.toMillis(queries.compileNanos()));
+			}
+		}
 
-		@JsonProperty("input")
-		public String input;
+		final KeyDictionary keys = marshaller.keyDictionary();
+		if (keys != null) {
+			LOG.info("jq key dictionary: hits={}, misses={}", keys.hits(), keys.misses());
+			if (reporter != null) {
+				reporter.incrCounter(COUNTER_GROUP, "KEY_DICTIONARY_HITS", keys.hits());
+				reporter.incrCounter(COUNTER_GROUP, "KEY_DICTIONARY_MISSES", keys.misses());
+			}
+		}
 
-		public ErrorObject(final String message, final String clazz, final String input) {
-			this.message = message;
-			this.clazz = clazz;
-			this.input = input;
+		final PooledBufferRecycler recycler = parser.factory().recycler();
+		LOG.info("jq buffer recycler: hits={}, misses={}, max byte buffer={}, max char buffer={}",
+				recycler.hits(), recycler.misses(), recycler.maxByteBufferSize(), recycler.maxCharBufferSize());
+		if (reporter != null) {
+			reporter.incrCounter(COUNTER_GROUP, "RECYCLED_BUFFER_HITS", recycler.hits());
+			reporter.incrCounter(COUNTER_GROUP, "RECYCLED_BUFFER_MISSES", recycler.misses());
+			reporter.incrCounter(COUNTER_GROUP, "RECYCLED_BUFFER_MAX_BYTES", recycler.maxByteBufferSize());
+			reporter.incrCounter(COUNTER_GROUP, "RECYCLED_BUFFER_MAX_CHARS", recycler.maxCharBufferSize());
 		}
 	}
 
@@ -175,7 +341,7 @@ public class JsonQueryUDTF extends GenericUDTF {
 			}
 		}
 
-		public static ResultObjectMarshaller create(final List<String> nameAndTypeArgs) throws UDFArgumentException {
+		public static ResultObjectMarshaller create(final List<String> nameAndTypeArgs, final NumericCoercion coercion, final KeyDictionary keys) throws UDFArgumentException {
 			final List<String> columns = new ArrayList<>(nameAndTypeArgs.size());
 			final List<ObjectInspector> inspectors = new ArrayList<>(nameAndTypeArgs.size());
 
@@ -187,9 +353,9 @@ public class JsonQueryUDTF extends GenericUDTF {
 
 			if (columns.size() == 1 && columns.get(0) == null) { // _FUNC_(JSON, 'JQ', 'TYPE') form
 				columns.set(0, "col1");
-				return new ResultObjectMarshaller(true, ObjectInspectorFactory.getStandardStructObjectInspector(columns, inspectors));
+				return new ResultObjectMarshaller(true, ObjectInspectorFactory.getStandardStructObjectInspector(columns, inspectors), coercion, keys);
 			} else { // _FUNC_(JSON, 'JQ', 'FIELD_1:TYPE_1', ..., 'FIELD_N:TYPE_N') form
-				return new ResultObjectMarshaller(false, ObjectInspectorFactory.getStandardStructObjectInspector(columns, inspectors));
+				return new ResultObjectMarshaller(false, ObjectInspectorFactory.getStandardStructObjectInspector(columns, inspectors), coercion, keys);
 			}
 		}
 	}
@@ -0,0 +1,139 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+/**
+ * Parses JSON inputs into trees, enforcing {@link Limit#INPUT_BYTES} and {@link Limit#NODES}, and builds the
+ * {@code $error} object for inputs which could not be parsed. Not thread-safe; create one per UDTF or SerDe instance.
+ */
+public class InputParser {
+	// $error.input of an input which exceeded a limit is cut at jq.limit.input.bytes, or at this many bytes.
+	private static final int MAX_ERROR_INPUT_BYTES = 64 * 1024;
+
+	private final JsonQueryConf conf;
+
+	// factory is created per instance because it owns the symbol tables and the buffer recycler, which are mutated by every
+	// parser. jackson already recycles buffers through a thread-local recycler; owning it adds jq.buffer.retain.max and the stats.
+	private final PooledJsonFactory factory;
+
+	public InputParser(final JsonQueryConf conf) {
+		this.conf = conf;
+		this.factory = JsonMappers.newFactory(conf.bufferRetainMax);
+	}
+
+	public PooledJsonFactory factory() {
+		return factory;
+	}
+
+	/**
+	 * Parses directly from the UTF-8 bytes of the writable, so that a large input does not also materialize as a String.
+	 * Inputs which are not valid UTF-8 are parsed again from {@link Text#toString()}, which replaces malformed sequences
+	 * with U+FFFD as the String based parsing always did, instead of failing on them.
+	 */
+	public JsonNode parse(final Text jsonText) throws IOException {
+		if (jsonText == null)
+			return NullNode.getInstance();
+
+		final long maxInputBytes = conf.limit(Limit.INPUT_BYTES);
+		if (jsonText.getLength() > maxInputBytes)
+			throw new LimitExceededException(Limit.INPUT_BYTES, conf.limitAction(Limit.INPUT_BYTES), jsonText.getLength(), maxInputBytes);
+
+		try {
+			return parse(factory.createParser(jsonText.getBytes(), 0, jsonText.getLength()));
+		} catch (final LimitExceededException e) {
+			throw e;
+		} catch (final IOException e) {
+			if (isValidUtf8(jsonText.getBytes(), jsonText.getLength()))
+				throw e;
+			return parse(factory.createParser(jsonText.toString()));
+		}
+	}
+
+	private JsonNode parse(JsonParser parser) throws IOException {
+		if (conf.limit(Limit.NODES) != Long.MAX_VALUE)
+			parser = new NodeCountingParser(parser, conf.limit(Limit.NODES), conf.limitAction(Limit.NODES));
+
+		try {
+			final JsonNode json = JsonMappers.TREE_READER.readTree(parser);
+			if (json == null) // empty input
+				return NullNode.getInstance();
+			if (parser.nextToken() != null)
+				throw new JsonParseException(parser, "trailing characters");
+			return json;
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * Checks the bytes in place, without decoding them into a buffer as large as the input. Overlong encodings,
+	 * surrogates and code points above U+10FFFF are malformed, as for {@link StandardCharsets#UTF_8}.
+	 */
+	static boolean isValidUtf8(final byte[] bytes, final int length) {
+		int i = 0;
+		while (i < length) {
+			final int b = bytes[i++] & 0xff;
+			if (b < 0x80)
+				continue;
+
+			final int n; // number of continuation bytes
+			final int min; // smallest code point which needs this many bytes
+			int cp;
+			if (b >= 0xc2 && b <= 0xdf) {
+				n = 1;
+				min = 0x80;
+				cp = b & 0x1f;
+			} else if ((b & 0xf0) == 0xe0) {
+				n = 2;
+				min = 0x800;
+				cp = b & 0x0f;
+			} else if (b >= 0xf0 && b <= 0xf4) {
+				n = 3;
+				min = 0x10000;
+				cp = b & 0x07;
+			} else {
+				return false;
+			}
+
+			if (length - i < n)
+				return false;
+			for (int j = 0; j < n; ++j) {
+				final int c = bytes[i++] & 0xff;
+				if ((c & 0xc0) != 0x80)
+					return false;
+				cp = (cp << 6) | (c & 0x3f);
+			}
+			if (cp < min || cp > 0x10ffff || (cp >= 0xd800 && cp <= 0xdfff))
+				return false;
+		}
+		return true;
+	}
+
+	public JsonNode newErrorNode(final Exception e, final Text jsonText) {
+		final String input;
+		if (e instanceof LimitExceededException && jsonText != null) {
+			// do not copy the whole input which exceeded a limit into $error.
+			int length = (int) Math.min(jsonText.getLength(), Math.min(conf.limit(Limit.INPUT_BYTES), MAX_ERROR_INPUT_BYTES));
+			// do not split a multi-byte character: back off while the first dropped byte is a continuation byte.
+			while (length > 0 && length < jsonText.getLength() && (jsonText.getBytes()[length] & 0xc0) == 0x80)
+				--length;
+			input = new String(jsonText.getBytes(), 0, length, StandardCharsets.UTF_8);
+		} else {
+			input = jsonText == null ? null : jsonText.toString();
+		}
+		// built directly rather than serialized through the shared mapper, which is on the hot path for error-heavy inputs.
+		return JsonNodeFactory.instance.objectNode()
+				.put("message", e.getMessage())
+				.put("class", e.getClass().getName())
+				.put("input", input);
+	}
+}
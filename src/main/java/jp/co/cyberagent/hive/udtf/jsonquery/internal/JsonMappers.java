@@ -0,0 +1,29 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser.Feature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+/**
+ * Process-wide, read-only Jackson configuration shared by all UDTF instances.
+ *
+ * The mapper and the reader are immutable after class initialization and hold the deserializer caches, which are
+ * expensive to build but safe to share. Parsers must be created from a per-instance factory ({@link #newFactory(int)}),
+ * which owns the mutable parts, i.e. the canonicalizing symbol tables and the buffers, so that instances never contend
+ * with each other while parsing.
+ */
+public class JsonMappers {
+	public static final ObjectMapper MAPPER = new ObjectMapper(new JsonFactory().enable(Feature.ALLOW_UNQUOTED_CONTROL_CHARS));
+
+	// the root deserializer for JsonNode is resolved once here, instead of being looked up on every readTree().
+	public static final ObjectReader TREE_READER = MAPPER.readerFor(JsonNode.class);
+
+	public static PooledJsonFactory newFactory(final int bufferRetainMax) {
+		final PooledJsonFactory factory = new PooledJsonFactory(bufferRetainMax);
+		factory.enable(Feature.ALLOW_UNQUOTED_CONTROL_CHARS);
+		factory.setCodec(TREE_READER);
+		return factory;
+	}
+}
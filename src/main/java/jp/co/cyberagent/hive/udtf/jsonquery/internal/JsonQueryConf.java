@@ -0,0 +1,75 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import org.apache.hadoop.conf.Configuration;
+
+public class JsonQueryConf {
+	// recycled parser buffers larger than this (in bytes or chars) are dropped instead of being kept for the next row.
+	public static final String BUFFER_RETAIN_MAX = "jq.buffer.retain.max";
+
+	// how strings, out-of-range numbers and fractions are converted into int, bigint, float and double. see NumericCoercion.
+	public static final String COERCE_STRINGS = "jq.coerce.strings";
+	public static final String COERCE_OVERFLOW = "jq.coerce.overflow";
+	public static final String COERCE_FRACTION = "jq.coerce.fraction";
+
+	// maximum number of distinct map keys to keep prebuilt Text keys for. 0 disables interning.
+	public static final String INTERN_KEYS_MAX = "jq.intern.keys.max";
+
+	// number of compiled programs (and, separately, of programs which failed to compile) cached for a non-constant JQ.
+	public static final String DYNAMIC_CACHE_SIZE = "jq.dynamic.cache.size";
+	// whether rows with a non-constant JQ which fails to compile are skipped, instead of failing the query.
+	public static final String DYNAMIC_SKIP_INVALID = "jq.dynamic.skip.invalid";
+
+	// whether test, sort_by, group_by and unique_by are replaced with the implementations in internal.builtins.
+	public static final String BUILTINS_OPTIMIZED = "jq.builtins.optimized";
+
+	// whether the nodes of jq programs are instrumented and the profile is reported at close(), and how often to measure time.
+	public static final String PROFILE = "jq.profile";
+	public static final String PROFILE_SAMPLE_INTERVAL = "jq.profile.sample.interval";
+
+	public static final JsonQueryConf DEFAULT = new JsonQueryConf(new Configuration(false));
+
+	public final int bufferRetainMax;
+	public final NumericCoercion coercion;
+	public final int internKeysMax;
+	public final int dynamicCacheSize;
+	public final boolean dynamicSkipInvalid;
+	public final boolean builtinsOptimized;
+	public final boolean profile;
+	public final int profileSampleInterval;
+
+	private final long[] limits = new long[Limit.values().length];
+	private final Limit.Action[] limitActions = new Limit.Action[Limit.values().length];
+
+	private JsonQueryConf(final Configuration conf) {
+		this.bufferRetainMax = conf.getInt(BUFFER_RETAIN_MAX, Integer.MAX_VALUE);
+		this.coercion = new NumericCoercion(
+				NumericCoercion.parsePolicy(NumericCoercion.Strings.class, conf.get(COERCE_STRINGS, "lenient")),
+				NumericCoercion.parsePolicy(NumericCoercion.Overflow.class, conf.get(COERCE_OVERFLOW, "wrap")),
+				NumericCoercion.parsePolicy(NumericCoercion.Fraction.class, conf.get(COERCE_FRACTION, "truncate")));
+		this.internKeysMax = conf.getInt(INTERN_KEYS_MAX, 0);
+		this.dynamicCacheSize = conf.getInt(DYNAMIC_CACHE_SIZE, 1000);
+		this.dynamicSkipInvalid = conf.getBoolean(DYNAMIC_SKIP_INVALID, false);
+		this.builtinsOptimized = conf.getBoolean(BUILTINS_OPTIMIZED, true);
+		this.profile = conf.getBoolean(PROFILE, false);
+		this.profileSampleInterval = conf.getInt(PROFILE_SAMPLE_INTERVAL, 100);
+
+		for (final Limit limit : Limit.values()) {
+			limits[limit.ordinal()] = conf.getLong(limit.key, Long.MAX_VALUE);
+			limitActions[limit.ordinal()] = Limit.Action.of(conf.get(limit.actionKey(), "error"));
+		}
+	}
+
+	public static JsonQueryConf of(final Configuration conf) {
+		if (conf == null)
+			return DEFAULT;
+		return new JsonQueryConf(conf);
+	}
+
+	public long limit(final Limit limit) {
+		return limits[limit.ordinal()];
+	}
+
+	public Limit.Action limitAction(final Limit limit) {
+		return limitActions[limit.ordinal()];
+	}
+}
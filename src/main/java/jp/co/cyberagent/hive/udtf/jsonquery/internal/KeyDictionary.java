@@ -0,0 +1,48 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * A bounded dictionary from JSON field names to prebuilt {@link Text} keys, for marshalling maps of fixed-schema JSON
+ * without allocating a key per entry per row. Not thread-safe; create one per UDTF instance.
+ *
+ * The dictionary is keyed by String rather than by the parser's byte symbol table, because the results of jq no longer
+ * carry the bytes they were parsed from, and jq may build objects with new keys. Field names copied straight from the
+ * input are the canonical Strings interned by the parser, so their lookups hit the cached hash code and the identity
+ * check of {@link String#equals(Object)}; other keys are compared by content.
+ */
+public class KeyDictionary {
+	private final int max;
+	private final Map<String, Text> keys = new HashMap<>();
+
+	private long hits;
+	private long misses;
+
+	public KeyDictionary(final int max) {
+		this.max = max;
+	}
+
+	public Text get(final String key) {
+		Text text = keys.get(key);
+		if (text != null) {
+			++hits;
+			return text;
+		}
+		++misses;
+		text = new Text(key);
+		if (keys.size() < max)
+			keys.put(key, text);
+		return text;
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+}
@@ -0,0 +1,36 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.util.Locale;
+
+public enum Limit {
+	INPUT_BYTES("jq.limit.input.bytes"),
+	NODES("jq.limit.nodes"),
+	OUTPUTS("jq.limit.outputs");
+
+	public final String key;
+
+	private Limit(final String key) {
+		this.key = key;
+	}
+
+	public String actionKey() {
+		return key + ".action";
+	}
+
+	public enum Action {
+		// route the input to $error, as if it was a corrupt JSON.
+		ERROR,
+		// keep as much as possible. rows exceeding INPUT_BYTES or NODES are dropped, OUTPUTS are cut at the limit.
+		TRUNCATE,
+		// fail the task.
+		FAIL;
+
+		public static Action of(final String name) {
+			try {
+				return valueOf(name.trim().toUpperCase(Locale.ROOT));
+			} catch (final IllegalArgumentException e) {
+				throw new IllegalArgumentException("unknown action: " + name + " (must be one of error, truncate or fail)");
+			}
+		}
+	}
+}
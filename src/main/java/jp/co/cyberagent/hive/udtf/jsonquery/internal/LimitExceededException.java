@@ -0,0 +1,16 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.io.IOException;
+
+public class LimitExceededException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public final Limit limit;
+	public final Limit.Action action;
+
+	public LimitExceededException(final Limit limit, final Limit.Action action, final long value, final long max) {
+		super(limit.key + " exceeded (" + value + " > " + max + ")");
+		this.limit = limit;
+		this.action = action;
+	}
+}
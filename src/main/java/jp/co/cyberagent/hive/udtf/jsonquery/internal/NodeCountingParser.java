@@ -0,0 +1,31 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+
+/**
+ * Counts the number of nodes (scalars, objects and arrays) while a tree is being read, and aborts reading as soon as
+ * it exceeds the limit, before the rest of the tree is built.
+ */
+public class NodeCountingParser extends JsonParserDelegate {
+	private final long max;
+	private final Limit.Action action;
+	private long nodes;
+
+	public NodeCountingParser(final JsonParser d, final long max, final Limit.Action action) {
+		super(d);
+		this.max = max;
+		this.action = action;
+	}
+
+	@Override
+	public JsonToken nextToken() throws IOException {
+		final JsonToken t = delegate.nextToken();
+		if (t != null && t != JsonToken.FIELD_NAME && !t.isStructEnd() && ++nodes > max)
+			throw new LimitExceededException(Limit.NODES, action, nodes, max);
+		return t;
+	}
+}
@@ -0,0 +1,254 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableDoubleObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableFloatObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableIntObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.WritableLongObjectInspector;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.DecimalNode;
+import com.fasterxml.jackson.databind.node.LongNode;
+
+/**
+ * Converts JSON values into numeric Hive writables. Numbers which fit the target type are written directly from the
+ * node's primitive value; everything else goes through the explicit rules below. The defaults reproduce the behavior
+ * of {@link JsonNode#asInt()}, {@link JsonNode#asLong()} and {@link JsonNode#asDouble()}.
+ */
+public class NumericCoercion {
+	public enum Strings {
+		// parse strings as numbers and fall back to 0 on failure (same as JsonNode#asInt() etc.)
+		LENIENT,
+		// parse strings as numbers and produce NULL on failure
+		STRICT,
+		// produce NULL for every string
+		NULL,
+	}
+
+	public enum Overflow {
+		// wrap around as Java narrowing conversions do (same as JsonNode#asInt() etc.)
+		WRAP,
+		// clamp to the minimum or maximum value of the target type
+		SATURATE,
+		// produce NULL
+		NULL,
+	}
+
+	public enum Fraction {
+		// round toward zero (same as JsonNode#asInt() etc.)
+		TRUNCATE,
+		// round half away from zero
+		ROUND,
+		// produce NULL for numbers with a fractional part
+		NULL,
+	}
+
+	public static final NumericCoercion DEFAULT = new NumericCoercion(Strings.LENIENT, Overflow.WRAP, Fraction.TRUNCATE);
+
+	private final Strings strings;
+	private final Overflow overflow;
+	private final Fraction fraction;
+
+	public NumericCoercion(final Strings strings, final Overflow overflow, final Fraction fraction) {
+		this.strings = strings;
+		this.overflow = overflow;
+		this.fraction = fraction;
+	}
+
+	public static <T extends Enum<T>> T parsePolicy(final Class<T> clazz, final String name) {
+		try {
+			return Enum.valueOf(clazz, name.trim().toUpperCase(Locale.ROOT));
+		} catch (final IllegalArgumentException e) {
+			final T[] policies = clazz.getEnumConstants();
+			final StringBuilder names = new StringBuilder();
+			for (int i = 0; i < policies.length; ++i) {
+				if (i > 0)
+					names.append(i == policies.length - 1 ? " or " : ", ");
+				names.append(policies[i].name().toLowerCase(Locale.ROOT));
+			}
+			throw new IllegalArgumentException("unknown " + clazz.getSimpleName().toLowerCase(Locale.ROOT) + " policy: " + name + " (must be one of " + names + ")");
+		}
+	}
+
+	/**
+	 * @return a numeric node, or null if the value must become NULL. Non-numeric values are returned as is.
+	 */
+	private JsonNode toNumber(final JsonNode json) {
+		if (!json.isTextual())
+			return json;
+		switch (strings) {
+			case STRICT: {
+				final String text = json.textValue().trim();
+				try {
+					return LongNode.valueOf(Long.parseLong(text));
+				} catch (final NumberFormatException e) {
+					// not a long, try again as a decimal
+				}
+				try {
+					return DecimalNode.valueOf(new BigDecimal(text));
+				} catch (final NumberFormatException e) {
+					return null;
+				}
+			}
+			case NULL:
+				return null;
+			default:
+				throw new IllegalStateException("lenient string coercion must be handled by the caller");
+		}
+	}
+
+	private static double truncate(final double d) {
+		return d < 0 ? Math.ceil(d) : Math.floor(d);
+	}
+
+	private static double round(final double d) {
+		return Math.copySign(Math.floor(Math.abs(d) + 0.5), d);
+	}
+
+	/**
+	 * @return the integral part of d according to the fraction policy, or NaN if the value must become NULL.
+	 */
+	private double toIntegral(final double d) {
+		if (Double.isInfinite(d) || d == Math.rint(d))
+			return d;
+		switch (fraction) {
+			case ROUND:
+				return round(d);
+			case NULL:
+				return Double.NaN;
+			default:
+				return truncate(d);
+		}
+	}
+
+	public Object toInt(final WritableIntObjectInspector inspector, final JsonNode json) {
+		if (json.isInt())
+			return inspector.create(json.intValue());
+		if (json.isTextual() && strings == Strings.LENIENT)
+			return inspector.create(json.asInt());
+
+		final JsonNode number = toNumber(json);
+		if (number == null)
+			return null;
+
+		if (number.isIntegralNumber()) {
+			if (number.canConvertToInt())
+				return inspector.create(number.intValue());
+			switch (overflow) {
+				case SATURATE:
+					return inspector.create(number.bigIntegerValue().signum() > 0 ? Integer.MAX_VALUE : Integer.MIN_VALUE);
+				case NULL:
+					return null;
+				default:
+					return inspector.create(number.intValue());
+			}
+		}
+
+		if (number.isFloatingPointNumber()) {
+			if (Double.isNaN(number.doubleValue()))
+				return overflow == Overflow.NULL ? null : inspector.create(0);
+			final double d = toIntegral(number.doubleValue());
+			if (Double.isNaN(d))
+				return null;
+			if (d >= Integer.MIN_VALUE && d <= Integer.MAX_VALUE)
+				return inspector.create((int) d);
+			// (int) saturates doubles, which is what JsonNode#asInt() does for both WRAP and SATURATE.
+			return overflow == Overflow.NULL ? null : inspector.create((int) d);
+		}
+
+		return inspector.create(number.asInt());
+	}
+
+	public Object toLong(final WritableLongObjectInspector inspector, final JsonNode json) {
+		if (json.isInt() || json.isLong())
+			return inspector.create(json.longValue());
+		if (json.isTextual() && strings == Strings.LENIENT)
+			return inspector.create(json.asLong());
+
+		final JsonNode number = toNumber(json);
+		if (number == null)
+			return null;
+
+		if (number.isIntegralNumber()) {
+			if (number.canConvertToLong())
+				return inspector.create(number.longValue());
+			switch (overflow) {
+				case SATURATE:
+					return inspector.create(number.bigIntegerValue().signum() > 0 ? Long.MAX_VALUE : Long.MIN_VALUE);
+				case NULL:
+					return null;
+				default:
+					return inspector.create(number.longValue());
+			}
+		}
+
+		if (number.isFloatingPointNumber()) {
+			if (Double.isNaN(number.doubleValue()))
+				return overflow == Overflow.NULL ? null : inspector.create(0L);
+			final double d = toIntegral(number.doubleValue());
+			if (Double.isNaN(d))
+				return null;
+			if (d >= -0x1p63 && d < 0x1p63)
+				return inspector.create((long) d);
+			return overflow == Overflow.NULL ? null : inspector.create((long) d);
+		}
+
+		return inspector.create(number.asLong());
+	}
+
+	public Object toDouble(final WritableDoubleObjectInspector inspector, final JsonNode json) {
+		if (json.isDouble() || json.isInt() || json.isLong())
+			return inspector.create(json.doubleValue());
+		if (json.isTextual() && strings == Strings.LENIENT)
+			return inspector.create(json.asDouble());
+
+		final JsonNode number = toNumber(json);
+		if (number == null)
+			return null;
+		if (!number.isNumber())
+			return inspector.create(number.asDouble());
+
+		final double d = number.doubleValue();
+		if (Double.isInfinite(d)) { // a BigInteger or BigDecimal out of the range of double
+			switch (overflow) {
+				case SATURATE:
+					return inspector.create(Math.copySign(Double.MAX_VALUE, d));
+				case NULL:
+					return null;
+				default:
+					break;
+			}
+		}
+		return inspector.create(d);
+	}
+
+	public Object toFloat(final WritableFloatObjectInspector inspector, final JsonNode json) {
+		final double d;
+		if (json.isNumber()) {
+			d = json.doubleValue();
+		} else if (json.isTextual() && strings == Strings.LENIENT) {
+			d = json.asDouble();
+		} else {
+			final JsonNode number = toNumber(json);
+			if (number == null)
+				return null;
+			if (number instanceof DecimalNode) // parse directly into float to avoid rounding twice
+				return inspector.create(number.decimalValue().floatValue());
+			d = number.asDouble();
+		}
+
+		if (!Double.isInfinite(d) && Math.abs(d) > Float.MAX_VALUE) {
+			switch (overflow) {
+				case SATURATE:
+					return inspector.create(Math.copySign(Float.MAX_VALUE, (float) d));
+				case NULL:
+					return null;
+				default:
+					break;
+			}
+		}
+		return inspector.create((float) d);
+	}
+}
@@ -0,0 +1,73 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import com.fasterxml.jackson.core.util.BufferRecycler;
+
+/**
+ * A {@link BufferRecycler} owned by a single UDTF instance. Jackson already reuses buffers across parsers through its
+ * thread-local recycler; this one additionally drops buffers larger than {@code retainMax} instead of keeping them,
+ * and counts how often the recycled buffers are reused.
+ *
+ * Only the buffers jackson takes from the recycler are covered: the read buffers, and the first segment of the text
+ * buffer, which is returned at most about 256K chars long. A longer string value is accumulated in further segments and
+ * copied into its String without going through the recycler, so those allocations are neither reused nor counted here.
+ */
+public class PooledBufferRecycler extends BufferRecycler {
+	private final int retainMax;
+
+	private long allocations;
+	private long misses;
+	private long maxByteBufferSize;
+	private long maxCharBufferSize;
+
+	public PooledBufferRecycler(final int retainMax) {
+		this.retainMax = retainMax;
+	}
+
+	@Override
+	public byte[] allocByteBuffer(final int ix, final int minSize) {
+		final byte[] pooled = _byteBuffers[ix];
+		if (pooled != null && pooled.length > retainMax)
+			_byteBuffers[ix] = null;
+		++allocations;
+		return super.allocByteBuffer(ix, minSize);
+	}
+
+	@Override
+	public char[] allocCharBuffer(final int ix, final int minSize) {
+		final char[] pooled = _charBuffers[ix];
+		if (pooled != null && pooled.length > retainMax)
+			_charBuffers[ix] = null;
+		++allocations;
+		return super.allocCharBuffer(ix, minSize);
+	}
+
+	@Override
+	protected byte[] balloc(final int size) {
+		++misses;
+		maxByteBufferSize = Math.max(maxByteBufferSize, size);
+		return super.balloc(size);
+	}
+
+	@Override
+	protected char[] calloc(final int size) {
+		++misses;
+		maxCharBufferSize = Math.max(maxCharBufferSize, size);
+		return super.calloc(size);
+	}
+
+	public long hits() {
+		return allocations - misses;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	public long maxByteBufferSize() {
+		return maxByteBufferSize;
+	}
+
+	public long maxCharBufferSize() {
+		return maxCharBufferSize;
+	}
+}
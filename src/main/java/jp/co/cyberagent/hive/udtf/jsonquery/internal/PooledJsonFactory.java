@@ -0,0 +1,27 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.util.BufferRecycler;
+
+/**
+ * A {@link JsonFactory} which hands out the same {@link PooledBufferRecycler} to every parser it creates.
+ * Not thread-safe; create one per UDTF instance.
+ */
+public class PooledJsonFactory extends JsonFactory {
+	private static final long serialVersionUID = 1L;
+
+	private final transient PooledBufferRecycler recycler;
+
+	public PooledJsonFactory(final int retainMax) {
+		this.recycler = new PooledBufferRecycler(retainMax);
+	}
+
+	@Override
+	public BufferRecycler _getBufferRecycler() {
+		return recycler;
+	}
+
+	public PooledBufferRecycler recycler() {
+		return recycler;
+	}
+}
@@ -0,0 +1,215 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Scope;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+/**
+ * Instruments each node of a compiled jq program with counters of invocations and outputs, and with wall-time
+ * measured on every {@code sampleInterval}-th invocation. Times are inclusive of sub-expressions.
+ *
+ * jackson-jq does not expose its AST, so the nodes are found by walking the fields of the engine's own classes and
+ * replaced in place. The entries are kept per instrumented program, and are dropped with {@link #release(JsonQuery)}
+ * when the program is no longer used. Not thread-safe; create one per UDTF instance.
+ */
+public class Profiler {
+	private static final String ENGINE_PACKAGE = JsonQuery.class.getPackage().getName() + ".";
+
+	private final int sampleInterval;
+	// the entries of each instrumented program, keyed by the instrumented root.
+	private final Map<JsonQuery, List<Entry>> programs = new LinkedHashMap<>();
+
+	public Profiler(final int sampleInterval) {
+		this.sampleInterval = Math.max(1, sampleInterval);
+	}
+
+	public static class Entry {
+		public final String expression;
+
+		private long calls;
+		private long outputs;
+		private long samples;
+		private long sampledNanos;
+
+		private Entry(final String expression) {
+			this.expression = expression;
+		}
+
+		public long calls() {
+			return calls;
+		}
+
+		public long outputs() {
+			return outputs;
+		}
+
+		/**
+		 * @return the total wall-time extrapolated from the sampled invocations.
+		 */
+		public long estimatedNanos() {
+			return samples == 0 ? 0 : (long) ((double) sampledNanos / samples * calls);
+		}
+	}
+
+	private class ProfiledQuery extends JsonQuery {
+		private final JsonQuery q;
+		private final Entry entry;
+
+		private ProfiledQuery(final JsonQuery q, final List<Entry> entries) {
+			this.q = q;
+			this.entry = new Entry(q.toString());
+			entries.add(entry);
+		}
+
+		@Override
+		public List<JsonNode> apply(final Scope scope, final JsonNode in) throws JsonQueryException {
+			final boolean sample = entry.calls++ % sampleInterval == 0;
+			if (!sample) {
+				final List<JsonNode> out = q.apply(scope, in);
+				entry.outputs += out.size();
+				return out;
+			}
+			final long start = System.nanoTime();
+			final List<JsonNode> out = q.apply(scope, in);
+			entry.sampledNanos += System.nanoTime() - start;
+			++entry.samples;
+			entry.outputs += out.size();
+			return out;
+		}
+
+		@Override
+		public String toString() {
+			return q.toString();
+		}
+	}
+
+	/**
+	 * @return the entries of the programs which have not been released, each program in the order of its nodes (pre-order).
+	 */
+	public List<Entry> entries() {
+		final List<Entry> entries = new ArrayList<>();
+		for (final List<Entry> program : programs.values())
+			entries.addAll(program);
+		return Collections.unmodifiableList(entries);
+	}
+
+	public JsonQuery instrument(final JsonQuery q) {
+		if (q instanceof ProfiledQuery)
+			return q;
+		final List<Entry> entries = new ArrayList<>();
+		final JsonQuery wrapped = wrap(q, Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>()), entries);
+		programs.put(wrapped, entries);
+		return wrapped;
+	}
+
+	/**
+	 * Drops the entries of a program returned by {@link #instrument(JsonQuery)}.
+	 */
+	public void release(final JsonQuery instrumented) {
+		programs.remove(instrumented);
+	}
+
+	private JsonQuery wrap(final JsonQuery q, final Set<Object> visited, final List<Entry> entries) {
+		if (q instanceof ProfiledQuery)
+			return q;
+		final ProfiledQuery wrapped = new ProfiledQuery(q, entries);
+		walk(q, visited, entries);
+		return wrapped;
+	}
+
+	private static boolean isEngineObject(final Object obj) {
+		return obj.getClass().getName().startsWith(ENGINE_PACKAGE);
+	}
+
+	/**
+	 * @return whether a ProfiledQuery can be stored where type is declared. A type variable, e.g. a field of a generic
+	 *         Pair, may stand for any type, so it can not.
+	 */
+	private static boolean canHold(final Type type) {
+		return type instanceof Class && ((Class<?>) type).isAssignableFrom(ProfiledQuery.class);
+	}
+
+	/**
+	 * @return whether a ProfiledQuery can be stored as an element of a list whose field is declared as type.
+	 */
+	private static boolean canHoldElements(final Type type) {
+		if (!(type instanceof ParameterizedType))
+			return false;
+		final Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+		return args.length == 1 && canHold(args[0]);
+	}
+
+	@SuppressWarnings("unchecked")
+	private void walk(final Object obj, final Set<Object> visited, final List<Entry> entries) {
+		if (!visited.add(obj))
+			return;
+
+		for (Class<?> clazz = obj.getClass(); clazz != null && clazz != Object.class; clazz = clazz.getSuperclass()) {
+			for (final Field field : clazz.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive())
+					continue;
+				try {
+					field.setAccessible(true);
+					final Object value = field.get(obj);
+					if (value == null)
+						continue;
+
+					// the declared types are checked, since a node wrapped where its subclass is expected fails with a
+					// ClassCastException when the program runs.
+					if (value instanceof JsonQuery && isEngineObject(value)) {
+						if (canHold(field.getGenericType()))
+							field.set(obj, wrap((JsonQuery) value, visited, entries));
+						else
+							walk(value, visited, entries);
+					} else if (value instanceof List) {
+						final boolean wrapItems = canHoldElements(field.getGenericType());
+						final List<Object> list = (List<Object>) value;
+						for (int i = 0; i < list.size(); ++i) {
+							final Object item = list.get(i);
+							if (wrapItems && item instanceof JsonQuery && isEngineObject(item)) {
+								try {
+									list.set(i, wrap((JsonQuery) item, visited, entries));
+								} catch (final UnsupportedOperationException e) {
+									walk(item, visited, entries);
+								}
+							} else if (item != null && isEngineObject(item)) {
+								walk(item, visited, entries);
+							}
+						}
+					} else if (value instanceof Map) {
+						for (final Object item : ((Map<Object, Object>) value).values())
+							if (item != null && isEngineObject(item))
+								walk(item, visited, entries);
+					} else if (value instanceof Object[]) {
+						final Object[] array = (Object[]) value;
+						for (int i = 0; i < array.length; ++i) {
+							if (array[i] instanceof JsonQuery && isEngineObject(array[i])
+									&& array.getClass().getComponentType().isAssignableFrom(ProfiledQuery.class))
+								array[i] = wrap((JsonQuery) array[i], visited, entries);
+							else if (array[i] != null && isEngineObject(array[i]))
+								walk(array[i], visited, entries);
+						}
+					} else if (isEngineObject(value)) {
+						walk(value, visited, entries);
+					}
+				} catch (final ReflectiveOperationException | RuntimeException e) {
+					// leave the node uninstrumented; profiling must never break the program.
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+/**
+ * A bounded LRU cache of compiled jq programs keyed by the program text, for a JQ argument which is not a constant.
+ * Programs which failed to compile are kept in a separate cache of the same size, so that they are not recompiled on
+ * every row. Not thread-safe; create one per UDTF instance.
+ */
+public class QueryCache {
+	private final Map<String, JsonQuery> compiled;
+	// the exception itself is kept, since its message may be null.
+	private final Map<String, JsonQueryException> failed;
+	// null unless profiling is enabled.
+	private final Profiler profiler;
+
+	private long hits;
+	private long failureHits;
+	private long misses;
+	private long failures;
+	private long compileNanos;
+
+	public QueryCache(final int max, final Profiler profiler) {
+		this.profiler = profiler;
+		this.compiled = new LinkedHashMap<String, JsonQuery>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, JsonQuery> eldest) {
+				if (size() <= max)
+					return false;
+				// the profile of an evicted program is dropped with it, so that the profiler does not grow without bound.
+				if (profiler != null)
+					profiler.release(eldest.getValue());
+				return true;
+			}
+		};
+		this.failed = newLruMap(max);
+	}
+
+	private static <V> Map<String, V> newLruMap(final int max) {
+		return new LinkedHashMap<String, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+				return size() > max;
+			}
+		};
+	}
+
+	public JsonQuery get(final String program) throws JsonQueryException {
+		final JsonQuery cached = compiled.get(program);
+		if (cached != null) {
+			++hits;
+			return cached;
+		}
+
+		final JsonQueryException error = failed.get(program);
+		if (error != null) {
+			++failureHits;
+			throw error;
+		}
+
+		++misses;
+		final long start = System.nanoTime();
+		try {
+			JsonQuery jq = JsonQuery.compile(program);
+			if (profiler != null)
+				jq = profiler.instrument(jq);
+			compiled.put(program, jq);
+			return jq;
+		} catch (final JsonQueryException e) {
+			++failures;
+			failed.put(program, e);
+			throw e;
+		} finally {
+			compileNanos += System.nanoTime() - start;
+		}
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups which found a program that had failed to compile.
+	 */
+	public long failureHits() {
+		return failureHits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	public long failures() {
+		return failures;
+	}
+
+	public long compileNanos() {
+		return compileNanos;
+	}
+}
@@ -1,6 +1,7 @@
 package jp.co.cyberagent.hive.udtf.jsonquery.internal;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 
 import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
@@ -22,10 +23,30 @@ import com.fasterxml.jackson.databind.node.TextNode;
 public class ResultObjectMarshaller {
 	private final boolean whole;
 	private final StructObjectInspector oi;
+	private final NumericCoercion coercion;
+	// null if map keys are not interned.
+	private final KeyDictionary keys;
+	// whether struct fields are also looked up case-insensitively, for field names lowercased by the metastore.
+	private final boolean ignoreCase;
 
 	public ResultObjectMarshaller(final boolean whole, final StructObjectInspector oi) {
+		this(whole, oi, NumericCoercion.DEFAULT, null);
+	}
+
+	public ResultObjectMarshaller(final boolean whole, final StructObjectInspector oi, final NumericCoercion coercion, final KeyDictionary keys) {
+		this(whole, oi, coercion, keys, false);
+	}
+
+	public ResultObjectMarshaller(final boolean whole, final StructObjectInspector oi, final NumericCoercion coercion, final KeyDictionary keys, final boolean ignoreCase) {
 		this.whole = whole;
 		this.oi = oi;
+		this.coercion = coercion;
+		this.keys = keys;
+		this.ignoreCase = ignoreCase;
+	}
+
+	public KeyDictionary keyDictionary() {
+		return keys;
 	}
 
 	public StructObjectInspector objectInspector() {
@@ -42,7 +63,41 @@ public class ResultObjectMarshaller {
 		}
 	}
 
-	private static Object marshal(final ObjectInspector iface, final JsonNode json) {
+	/**
+	 * Marshals the fields of json into a row, leaving the columns which are not in projection as NULL.
+	 * Unlike {@link #marshal(JsonNode)}, a null json results in a row with all columns NULL, rather than a NULL row.
+	 *
+	 * @param projection whether each column is read, or null if all columns are read.
+	 */
+	public Object marshal(final JsonNode json, final boolean[] projection) {
+		final StandardStructObjectInspector inspector = (StandardStructObjectInspector) oi;
+		final Object out = inspector.create();
+		final List<? extends StructField> fields = inspector.getAllStructFieldRefs();
+		for (int i = 0; i < fields.size(); ++i) {
+			if (projection != null && !projection[i])
+				continue;
+			final StructField field = fields.get(i);
+			inspector.setStructFieldData(out, field,
+					marshal(field.getFieldObjectInspector(), json == null ? null : get(json, field.getFieldName())));
+		}
+		return out;
+	}
+
+	private JsonNode get(final JsonNode json, final String name) {
+		final JsonNode value = json.get(name);
+		if (value != null || !ignoreCase || !json.isObject())
+			return value;
+		// an exact match is preferred, and only a missing field is looked for by a scan.
+		final Iterator<Entry<String, JsonNode>> iter = json.fields();
+		while (iter.hasNext()) {
+			final Entry<String, JsonNode> item = iter.next();
+			if (item.getKey().equalsIgnoreCase(name))
+				return item.getValue();
+		}
+		return null;
+	}
+
+	private Object marshal(final ObjectInspector iface, final JsonNode json) {
 		if (json == null || json.isNull())
 			return null;
 		if (iface instanceof WritableStringObjectInspector) {
@@ -55,17 +110,20 @@ public class ResultObjectMarshaller {
 			final Object out = inspector.create();
 			for (final StructField field : inspector.getAllStructFieldRefs()) {
 				inspector.setStructFieldData(out, field,
-						marshal(field.getFieldObjectInspector(), json.get(field.getFieldName())));
+						marshal(field.getFieldObjectInspector(), get(json, field.getFieldName())));
 			}
 			return out;
 		} else if (iface instanceof StandardMapObjectInspector) {
 			final StandardMapObjectInspector inspector = (StandardMapObjectInspector) iface;
 			final Object out = inspector.create();
+			final boolean internKeys = keys != null && inspector.getMapKeyObjectInspector() instanceof WritableStringObjectInspector;
 			final Iterator<Entry<String, JsonNode>> iter = json.fields();
 			while (iter.hasNext()) {
 				final Entry<String, JsonNode> item = iter.next();
-				inspector.put(out, marshal(inspector.getMapKeyObjectInspector(), new TextNode(item.getKey())),
-						marshal(inspector.getMapValueObjectInspector(), item.getValue()));
+				final Object key = internKeys
+						? keys.get(item.getKey())
+						: marshal(inspector.getMapKeyObjectInspector(), new TextNode(item.getKey()));
+				inspector.put(out, key, marshal(inspector.getMapValueObjectInspector(), item.getValue()));
 			}
 			return out;
 		} else if (iface instanceof StandardListObjectInspector) {
@@ -77,17 +135,13 @@ public class ResultObjectMarshaller {
 						marshal(inspector.getListElementObjectInspector(), iter.next()));
 			return out;
 		} else if (iface instanceof WritableIntObjectInspector) {
-			final WritableIntObjectInspector inspector = (WritableIntObjectInspector) iface;
-			return inspector.create(json.asInt());
+			return coercion.toInt((WritableIntObjectInspector) iface, json);
 		} else if (iface instanceof WritableFloatObjectInspector) {
-			final WritableFloatObjectInspector inspector = (WritableFloatObjectInspector) iface;
-			return inspector.create((float) json.asDouble());
+			return coercion.toFloat((WritableFloatObjectInspector) iface, json);
 		} else if (iface instanceof WritableDoubleObjectInspector) {
-			final WritableDoubleObjectInspector inspector = (WritableDoubleObjectInspector) iface;
-			return inspector.create(json.asDouble());
+			return coercion.toDouble((WritableDoubleObjectInspector) iface, json);
 		} else if (iface instanceof WritableLongObjectInspector) {
-			final WritableLongObjectInspector inspector = (WritableLongObjectInspector) iface;
-			return inspector.create(json.asLong());
+			return coercion.toLong((WritableLongObjectInspector) iface, json);
 		} else if (iface instanceof WritableBooleanObjectInspector) {
 			final WritableBooleanObjectInspector inspector = (WritableBooleanObjectInspector) iface;
 			return inspector.create(json.asBoolean());
@@ -0,0 +1,21 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins;
+
+import net.thisptr.jackson.jq.Function;
+import net.thisptr.jackson.jq.Scope;
+
+/**
+ * Replacements for the jackson-jq builtins which are hot in typical extraction programs. They produce the same results
+ * as the originals; test falls back to the original for anything it cannot prove to be equivalent.
+ */
+public class Builtins {
+	public static void register(final Scope scope) {
+		for (int nargs = 1; nargs <= 2; ++nargs) {
+			final Function original = scope.getFunction("test", nargs);
+			if (original != null)
+				scope.addFunction("test", nargs, new TestFunction(original));
+		}
+		scope.addFunction("sort_by", 1, new SortByFunction());
+		scope.addFunction("group_by", 1, new GroupByFunction());
+		scope.addFunction("unique_by", 1, new UniqueByFunction());
+	}
+}
@@ -0,0 +1,151 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * The jq ordering of values: null &lt; false &lt; true &lt; numbers &lt; strings &lt; arrays &lt; objects, together with a
+ * hash code which is consistent with it, i.e. values which compare equal have the same hash code.
+ */
+public class JsonNodeOrdering {
+	private static int rank(final JsonNode n) {
+		switch (n.getNodeType()) {
+			case NULL:
+			case MISSING:
+				return 0;
+			case BOOLEAN:
+				return n.booleanValue() ? 2 : 1;
+			case NUMBER:
+				return 3;
+			case STRING:
+				return 4;
+			case ARRAY:
+				return 5;
+			case OBJECT:
+				return 6;
+			default:
+				return 7;
+		}
+	}
+
+	/**
+	 * The order of numbers of the jackson-jq builtins, which compare them as doubles with {@link Double#compare}: -0.0
+	 * is less than 0.0, and NaN is greater than any other number and equal to itself. {@link Double#hashCode(double)}
+	 * is consistent with it.
+	 */
+	public static int compareNumbers(final double a, final double b) {
+		return Double.compare(a, b);
+	}
+
+	private static List<String> sortedKeys(final JsonNode n) {
+		final List<String> keys = new ArrayList<>(n.size());
+		final Iterator<String> iter = n.fieldNames();
+		while (iter.hasNext())
+			keys.add(iter.next());
+		Collections.sort(keys);
+		return keys;
+	}
+
+	public static int compare(final JsonNode a, final JsonNode b) {
+		final int ra = rank(a);
+		final int rb = rank(b);
+		if (ra != rb)
+			return Integer.compare(ra, rb);
+
+		switch (a.getNodeType()) {
+			case NUMBER:
+				return compareNumbers(a.doubleValue(), b.doubleValue());
+			case STRING:
+				return a.textValue().compareTo(b.textValue());
+			case ARRAY: {
+				final int n = Math.min(a.size(), b.size());
+				for (int i = 0; i < n; ++i) {
+					final int c = compare(a.get(i), b.get(i));
+					if (c != 0)
+						return c;
+				}
+				return Integer.compare(a.size(), b.size());
+			}
+			case OBJECT: {
+				final List<String> ak = sortedKeys(a);
+				final List<String> bk = sortedKeys(b);
+				final int n = Math.min(ak.size(), bk.size());
+				for (int i = 0; i < n; ++i) {
+					final int c = ak.get(i).compareTo(bk.get(i));
+					if (c != 0)
+						return c;
+				}
+				if (ak.size() != bk.size())
+					return Integer.compare(ak.size(), bk.size());
+				for (final String key : ak) {
+					final int c = compare(a.get(key), b.get(key));
+					if (c != 0)
+						return c;
+				}
+				return 0;
+			}
+			default:
+				return 0;
+		}
+	}
+
+	public static int hash(final JsonNode n) {
+		switch (n.getNodeType()) {
+			case NUMBER:
+				return Double.hashCode(n.doubleValue());
+			case STRING:
+				return n.textValue().hashCode();
+			case ARRAY: {
+				int h = 1;
+				for (final JsonNode item : n)
+					h = 31 * h + hash(item);
+				return h;
+			}
+			case OBJECT: {
+				// order-independent, as the ordering does not depend on the order of the fields.
+				int h = 0;
+				final Iterator<Entry<String, JsonNode>> iter = n.fields();
+				while (iter.hasNext()) {
+					final Entry<String, JsonNode> field = iter.next();
+					h += field.getKey().hashCode() ^ hash(field.getValue());
+				}
+				return h;
+			}
+			default:
+				return rank(n);
+		}
+	}
+
+	/**
+	 * Wraps a JsonNode so that it can be used as a key of hash-based collections under the jq ordering.
+	 */
+	public static class Key {
+		public final JsonNode node;
+		private final int hash;
+
+		public Key(final JsonNode node) {
+			this.node = node;
+			this.hash = JsonNodeOrdering.hash(node);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			final Key other = (Key) obj;
+			return hash == other.hash && compare(node, other.node) == 0;
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Scope;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+/**
+ * The elements of an array paired with their keys {@code [f]}, as used by sort_by(f), group_by(f) and unique_by(f).
+ *
+ * When every key is a single number or every key is a single string, which is by far the common case, the keys are
+ * held as double[] or String[] and compared without going through {@link JsonNodeOrdering}. The elements are sorted
+ * as an int[] of indices, without boxing.
+ */
+class KeyedElements {
+	private final JsonNode[] items;
+	// exactly one of these is non-null.
+	private final double[] numbers;
+	private final String[] strings;
+	private final JsonNode[] keys;
+
+	private KeyedElements(final JsonNode[] items, final double[] numbers, final String[] strings, final JsonNode[] keys) {
+		this.items = items;
+		this.numbers = numbers;
+		this.strings = strings;
+		this.keys = keys;
+	}
+
+	static String typeOf(final JsonNode n) {
+		return n.getNodeType().name().toLowerCase(Locale.ROOT);
+	}
+
+	static KeyedElements of(final Scope scope, final JsonQuery f, final JsonNode in) throws JsonQueryException {
+		if (!in.isArray())
+			throw new JsonQueryException(typeOf(in) + " (" + in + ") cannot be sorted, as it is not an array");
+
+		final int n = in.size();
+		final JsonNode[] items = new JsonNode[n];
+		final List<List<JsonNode>> outs = new ArrayList<>(n);
+		boolean allNumbers = true;
+		boolean allStrings = true;
+		for (int i = 0; i < n; ++i) {
+			items[i] = in.get(i);
+			final List<JsonNode> out = f.apply(scope, items[i]);
+			outs.add(out);
+			allNumbers &= out.size() == 1 && out.get(0).isNumber();
+			allStrings &= out.size() == 1 && out.get(0).isTextual();
+		}
+
+		if (allNumbers) {
+			final double[] numbers = new double[n];
+			for (int i = 0; i < n; ++i)
+				numbers[i] = outs.get(i).get(0).doubleValue();
+			return new KeyedElements(items, numbers, null, null);
+		}
+		if (allStrings) {
+			final String[] strings = new String[n];
+			for (int i = 0; i < n; ++i)
+				strings[i] = outs.get(i).get(0).textValue();
+			return new KeyedElements(items, null, strings, null);
+		}
+
+		final JsonNode[] keys = new JsonNode[n];
+		for (int i = 0; i < n; ++i) {
+			final ArrayNode key = JsonNodeFactory.instance.arrayNode();
+			for (final JsonNode o : outs.get(i))
+				key.add(o);
+			keys[i] = key;
+		}
+		return new KeyedElements(items, null, null, keys);
+	}
+
+	private int compare(final int i, final int j) {
+		if (numbers != null)
+			return JsonNodeOrdering.compareNumbers(numbers[i], numbers[j]);
+		if (strings != null)
+			return strings[i].compareTo(strings[j]);
+		return JsonNodeOrdering.compare(keys[i], keys[j]);
+	}
+
+	private Object hashKey(final int i) {
+		if (numbers != null)
+			return numbers[i];
+		if (strings != null)
+			return strings[i];
+		return new JsonNodeOrdering.Key(keys[i]);
+	}
+
+	// below this size, a range is sorted by insertion sort.
+	private static final int INSERTION_SORT_THRESHOLD = 7;
+
+	/**
+	 * Stably sorts the indices by their keys.
+	 */
+	private void sort(final int[] indices) {
+		mergeSort(indices.clone(), indices, 0, indices.length);
+	}
+
+	/**
+	 * Sorts src[lo, hi) into dst[lo, hi). Both must hold the same indices in that range.
+	 */
+	private void mergeSort(final int[] src, final int[] dst, final int lo, final int hi) {
+		if (hi - lo < INSERTION_SORT_THRESHOLD) {
+			for (int i = lo + 1; i < hi; ++i) {
+				for (int j = i; j > lo && compare(dst[j - 1], dst[j]) > 0; --j) {
+					final int t = dst[j];
+					dst[j] = dst[j - 1];
+					dst[j - 1] = t;
+				}
+			}
+			return;
+		}
+		final int mid = (lo + hi) >>> 1;
+		mergeSort(dst, src, lo, mid);
+		mergeSort(dst, src, mid, hi);
+		for (int i = lo, p = lo, q = mid; i < hi; ++i) {
+			if (q >= hi || (p < mid && compare(src[p], src[q]) <= 0))
+				dst[i] = src[p++];
+			else
+				dst[i] = src[q++];
+		}
+	}
+
+	/**
+	 * @return the elements stably sorted by their keys.
+	 */
+	List<JsonNode> sorted() {
+		final int[] indices = new int[items.length];
+		for (int i = 0; i < indices.length; ++i)
+			indices[i] = i;
+		sort(indices);
+		final List<JsonNode> out = new ArrayList<>(items.length);
+		for (final int i : indices)
+			out.add(items[i]);
+		return out;
+	}
+
+	/**
+	 * @return the elements grouped by equal keys, in the order of the keys. Each group keeps the original order.
+	 *         Only the distinct keys are sorted, not all the elements.
+	 */
+	List<List<JsonNode>> grouped() {
+		final Map<Object, Integer> ids = new HashMap<>();
+		final int[] groupOf = new int[items.length];
+		final int[] firsts = new int[items.length];
+		int groups = 0;
+		for (int i = 0; i < items.length; ++i) {
+			final Object key = hashKey(i);
+			Integer id = ids.get(key);
+			if (id == null) {
+				id = groups;
+				ids.put(key, id);
+				firsts[groups++] = i;
+			}
+			groupOf[i] = id;
+		}
+
+		// sort the groups by the key of their first element.
+		final int[] order = Arrays.copyOf(firsts, groups);
+		sort(order);
+		final int[] position = new int[groups];
+		for (int p = 0; p < groups; ++p)
+			position[groupOf[order[p]]] = p;
+
+		final List<List<JsonNode>> out = new ArrayList<>(groups);
+		for (int p = 0; p < groups; ++p)
+			out.add(new ArrayList<JsonNode>());
+		for (int i = 0; i < items.length; ++i)
+			out.get(position[groupOf[i]]).add(items[i]);
+		return out;
+	}
+}
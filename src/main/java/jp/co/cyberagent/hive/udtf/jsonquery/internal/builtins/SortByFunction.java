@@ -0,0 +1,26 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+
+import net.thisptr.jackson.jq.Function;
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Scope;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+/**
+ * sort_by(f)
+ */
+public class SortByFunction implements Function {
+	@Override
+	public List<JsonNode> apply(final Scope scope, final List<JsonQuery> args, final JsonNode in) throws JsonQueryException {
+		final ArrayNode out = JsonNodeFactory.instance.arrayNode();
+		for (final JsonNode item : KeyedElements.of(scope, args.get(0), in).sorted())
+			out.add(item);
+		return Collections.<JsonNode> singletonList(out);
+	}
+}
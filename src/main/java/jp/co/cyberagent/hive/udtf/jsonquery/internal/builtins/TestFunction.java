@@ -0,0 +1,203 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+
+import net.thisptr.jackson.jq.Function;
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Scope;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+/**
+ * test(re), test(re; flags) and test([re, flags]), with a cache of compiled patterns. The regex is usually a constant
+ * in the program, so each distinct regex is compiled only once per instance instead of once per call.
+ *
+ * Only regexes written in a small subset of the syntax, which means the same in java.util.regex as in the engine's
+ * Oniguruma-style regexes, are handled here: literal characters, escaped punctuation, {@code .}, {@code *}, {@code +},
+ * {@code ?}, {@code |}, plain groups and simple character classes, without flags other than {@code g}. Everything
+ * else (anchors, escapes such as {@code \d} or {@code \h}, other flags, and non-string arguments) is handed to the
+ * engine's own test, so the results and the errors are always the engine's. A call site which once needed the engine
+ * calls it directly from then on, without evaluating the arguments first, since such regexes are common and the
+ * arguments would otherwise be evaluated twice on every call.
+ * Not thread-safe, which is fine because a Scope is not shared between threads either.
+ */
+public class TestFunction implements Function {
+	private static final int MAX_PATTERNS = 256;
+
+	// cached for regexes outside the supported subset, so that they are not checked again.
+	private static final Pattern UNSUPPORTED = Pattern.compile("");
+
+	private static final String ESCAPABLE = "\\.*+?|()[]{}^$-/";
+
+	private final Function original;
+
+	// the regex arguments of the call sites handed to the engine. weak, so that programs evicted from the cache can be freed.
+	private final Set<JsonQuery> engineSites = Collections.newSetFromMap(new WeakHashMap<JsonQuery, Boolean>());
+
+	// keyed by the regex alone, since none of the supported flags changes the pattern.
+	private final Map<String, Pattern> patterns = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Pattern> eldest) {
+			return size() > MAX_PATTERNS;
+		}
+	};
+
+	/**
+	 * @param original the engine's test of the same arity, which handles the calls this class does not.
+	 */
+	public TestFunction(final Function original) {
+		this.original = original;
+	}
+
+	private static boolean isSupportedFlags(final JsonNode flags) {
+		if (flags.isNull())
+			return true;
+		if (!flags.isTextual())
+			return false;
+		for (final char c : flags.textValue().toCharArray())
+			if (c != 'g') // global; test() only needs the first match anyway
+				return false;
+		return true;
+	}
+
+	private static boolean isQuantifier(final char c) {
+		return c == '*' || c == '+' || c == '?';
+	}
+
+	/**
+	 * @return whether regex only uses syntax which means the same in java.util.regex and in the engine.
+	 */
+	static boolean isSupportedRegex(final String regex) {
+		boolean quantifiable = false; // whether the previous token can take a quantifier
+		boolean inClass = false;
+		for (int i = 0; i < regex.length(); ++i) {
+			final char c = regex.charAt(i);
+			if (c == '\\') {
+				// only escaped metacharacters, which are literals in both. \d, \h, \A, \< etc. differ or are not in both.
+				if (i + 1 >= regex.length() || ESCAPABLE.indexOf(regex.charAt(i + 1)) < 0)
+					return false;
+				++i;
+				quantifiable = !inClass;
+				continue;
+			}
+			if (inClass) {
+				if (c == '[' || c == '&')
+					return false; // nested classes, POSIX brackets and intersections
+				if (c == ']')
+					inClass = false;
+				quantifiable = !inClass;
+				continue;
+			}
+			switch (c) {
+				case '^':
+				case '$':
+				case '{':
+				case '}':
+					return false; // anchors depend on the line mode, and braces are literals or intervals depending on the engine
+				case '[':
+					if (i + 1 < regex.length() && regex.charAt(i + 1) == '^')
+						++i;
+					if (i + 1 >= regex.length() || regex.charAt(i + 1) == ']')
+						return false; // a leading ] is a literal in one and an empty class in the other
+					inClass = true;
+					quantifiable = false;
+					break;
+				case '(':
+					if (i + 1 < regex.length() && regex.charAt(i + 1) == '?')
+						return false; // extended groups
+					quantifiable = false;
+					break;
+				case ')':
+				case '.':
+					quantifiable = true;
+					break;
+				case '|':
+					quantifiable = false;
+					break;
+				case '*':
+				case '+':
+				case '?':
+					// no lazy or possessive quantifiers, and nothing to repeat is an error in both, with different messages.
+					if (!quantifiable || (i + 1 < regex.length() && isQuantifier(regex.charAt(i + 1))))
+						return false;
+					quantifiable = false;
+					break;
+				default:
+					quantifiable = true;
+					break;
+			}
+		}
+		return !inClass;
+	}
+
+	/**
+	 * @return the compiled pattern, or {@link #UNSUPPORTED} if the engine must handle the regex.
+	 */
+	private Pattern pattern(final String regex) {
+		Pattern p = patterns.get(regex);
+		if (p != null)
+			return p;
+		p = UNSUPPORTED;
+		if (isSupportedRegex(regex)) {
+			try {
+				// UNIX_LINES so that . matches everything but \n, as in the engine.
+				p = Pattern.compile(regex, Pattern.UNIX_LINES);
+			} catch (final PatternSyntaxException e) {
+				// let the engine report the error.
+			}
+		}
+		patterns.put(regex, p);
+		return p;
+	}
+
+	/**
+	 * @return the compiled pattern, or null if the engine must handle the call.
+	 */
+	private Pattern pattern(final JsonNode regex, final JsonNode flags) {
+		// the flags are checked first, so that an invalid flag never reaches the cache.
+		if (!isSupportedFlags(flags) || !regex.isTextual())
+			return null;
+		final Pattern p = pattern(regex.textValue());
+		return p == UNSUPPORTED ? null : p;
+	}
+
+	@Override
+	public List<JsonNode> apply(final Scope scope, final List<JsonQuery> args, final JsonNode in) throws JsonQueryException {
+		if (!in.isTextual() || engineSites.contains(args.get(0)))
+			return original.apply(scope, args, in);
+
+		final List<Pattern> ps = new ArrayList<>();
+		for (final JsonNode regex : args.get(0).apply(scope, in)) {
+			if (args.size() > 1) {
+				for (final JsonNode flags : args.get(1).apply(scope, in))
+					ps.add(pattern(regex, flags));
+			} else if (regex.isArray()) {
+				ps.add(pattern(regex.path(0), regex.has(1) ? regex.get(1) : NullNode.getInstance()));
+			} else {
+				ps.add(pattern(regex, NullNode.getInstance()));
+			}
+		}
+		if (ps.contains(null)) {
+			engineSites.add(args.get(0));
+			return original.apply(scope, args, in);
+		}
+
+		final List<JsonNode> out = new ArrayList<>(ps.size());
+		for (final Pattern p : ps)
+			out.add(BooleanNode.valueOf(p.matcher(in.textValue()).find()));
+		return out;
+	}
+}
@@ -0,0 +1,86 @@
+package jp.co.cyberagent.hive.udtf.jsonquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JsonQueryRunnerTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private File writeLines(final int n) throws Exception {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; ++i) {
+			if (i % 10 == 9)
+				sb.append("{corrupt\r\n");
+			else
+				sb.append("{\"i\": ").append(i).append(", \"xs\": [1, 2]}\r\n");
+			if (i % 7 == 0)
+				sb.append('\n'); // empty lines are skipped
+		}
+		final File file = tmp.newFile("input.json");
+		Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		final File input = writeLines(100);
+		final File output = new File(tmp.getRoot(), "output.json");
+
+		final JsonQueryRunner.Options options = JsonQueryRunner.Options.parse(new String[] {
+				"--output", output.getPath(), input.getPath(), "if $error then empty else {i, x: .xs[]} end", "i:int", "x:int" });
+		final JsonQueryRunner.Report report = JsonQueryRunner.run(options);
+
+		assertEquals(100, report.rows);
+		assertEquals(10, report.errors);
+		assertEquals(180, report.outputs);
+		assertEquals(100, report.latencies.count());
+		assertTrue(report.latencies.percentile(0.5) <= report.latencies.percentile(1.0));
+		assertTrue(report.outputNanos > 0);
+
+		final List<String> lines = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+		assertEquals(180, lines.size());
+		assertEquals("{\"i\":0,\"x\":1}", lines.get(0));
+		assertEquals("{\"i\":0,\"x\":2}", lines.get(1));
+	}
+
+	@Test
+	public void testRunMultiThreaded() throws Exception {
+		final File input = writeLines(1000);
+
+		final List<String> args = new ArrayList<>();
+		args.add("--threads");
+		args.add("4");
+		args.add("--conf");
+		args.add("jq.builtins.optimized=false");
+		args.add(input.getPath());
+		args.add("if $error then empty else .i end");
+		args.add("int");
+		final JsonQueryRunner.Report report = JsonQueryRunner.run(JsonQueryRunner.Options.parse(args.toArray(new String[0])));
+
+		assertEquals(1000, report.rows);
+		assertEquals(100, report.errors);
+		assertEquals(900, report.outputs);
+		assertEquals(0, report.outputNanos);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMissingArguments() {
+		JsonQueryRunner.Options.parse(new String[] { "--threads", "2", "input.json", ".foo" });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidThreads() {
+		JsonQueryRunner.Options.parse(new String[] { "--threads", "0", "input.json", ".foo", "int" });
+	}
+}
@@ -0,0 +1,109 @@
+package jp.co.cyberagent.hive.udtf.jsonquery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hive.serde.serdeConstants;
+import org.apache.hadoop.hive.serde2.ColumnProjectionUtils;
+import org.apache.hadoop.hive.serde2.SerDeException;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+public class JsonQuerySerDeTest {
+	private static final String TEST_JSON = "{\"region\": \"Asia\", \"timezones\": [{\"name\": \"Tokyo\", \"offset\": 540}, {\"name\": \"Taipei\", \"offset\": 480}, {\"name\": \"Kamchatka\", \"offset\": 720}]}";
+
+	private static Properties newTableProperties(final String jq, final String columns, final String types) {
+		final Properties tbl = new Properties();
+		tbl.setProperty(JsonQuerySerDe.JQ, jq);
+		tbl.setProperty(serdeConstants.LIST_COLUMNS, columns);
+		tbl.setProperty(serdeConstants.LIST_COLUMN_TYPES, types);
+		return tbl;
+	}
+
+	@Test
+	public void testDeserialize() throws SerDeException {
+		final JsonQuerySerDe sut = new JsonQuerySerDe();
+		sut.initialize(new Configuration(false), newTableProperties(
+				"{region, first: .timezones[0], names: [.timezones[].name]}",
+				"region,first,names",
+				"string:struct<name:string,offset:int>:array<string>"));
+
+		final ObjectInspector oi = sut.getObjectInspector();
+		assertEquals("struct<region:string,first:struct<name:string,offset:int>,names:array<string>>", oi.getTypeName());
+
+		final Object row = sut.deserialize(new Text(TEST_JSON));
+		assertEquals("Asia", new HivePath(oi, ".region").extract(row).asString());
+		assertEquals("Tokyo", new HivePath(oi, ".first.name").extract(row).asString());
+		assertEquals(540, new HivePath(oi, ".first.offset").extract(row).asInt());
+		assertEquals("Kamchatka", new HivePath(oi, ".names[2]").extract(row).asString());
+	}
+
+	@Test
+	public void testProjection() throws SerDeException {
+		final Configuration conf = new Configuration(false);
+		ColumnProjectionUtils.appendReadColumns(conf, Arrays.asList(1));
+
+		final JsonQuerySerDe sut = new JsonQuerySerDe();
+		sut.initialize(conf, newTableProperties("{region, count: (.timezones | length)}", "region,count", "string:int"));
+
+		final ObjectInspector oi = sut.getObjectInspector();
+		final Object row = sut.deserialize(new Text(TEST_JSON));
+		assertTrue(new HivePath(oi, ".region").extract(row).isNull());
+		assertEquals(3, new HivePath(oi, ".count").extract(row).asInt());
+	}
+
+	@Test
+	public void testCorruptInputsAndEmptyResults() throws SerDeException {
+		final JsonQuerySerDe sut = new JsonQuerySerDe();
+		sut.initialize(new Configuration(false), newTableProperties(
+				"if $error then {error: $error.message} else .[] end",
+				"a,error",
+				"int:string"));
+
+		final ObjectInspector oi = sut.getObjectInspector();
+
+		final Object corrupt = sut.deserialize(new Text("\"corrupt \"string"));
+		assertTrue(new HivePath(oi, ".a").extract(corrupt).isNull());
+		assertTrue(((String) new HivePath(oi, ".error").extract(corrupt).asString()).contains("Unrecognized token 'string'"));
+
+		final Object empty = sut.deserialize(new Text("[]"));
+		assertTrue(new HivePath(oi, ".a").extract(empty).isNull());
+		assertTrue(new HivePath(oi, ".error").extract(empty).isNull());
+
+		final Object first = sut.deserialize(new Text("[{\"a\": 1}, {\"a\": 2}]"));
+		assertEquals(1, new HivePath(oi, ".a").extract(first).asInt());
+	}
+
+	@Test
+	public void testCaseInsensitiveFields() throws SerDeException {
+		final JsonQuerySerDe sut = new JsonQuerySerDe();
+		// column names come lowercased from the metastore.
+		sut.initialize(new Configuration(false), newTableProperties(
+				"{userId: .region, Info: {firstName: .timezones[0].name}, userid2: 1, USERID2: 2}",
+				"userid,info,userid2",
+				"string:struct<firstname:string>:int"));
+
+		final ObjectInspector oi = sut.getObjectInspector();
+		final Object row = sut.deserialize(new Text(TEST_JSON));
+		assertEquals("Asia", new HivePath(oi, ".userid").extract(row).asString());
+		assertEquals("Tokyo", new HivePath(oi, ".info.firstname").extract(row).asString());
+		assertEquals(1, new HivePath(oi, ".userid2").extract(row).asInt());
+	}
+
+	@Test(expected = SerDeException.class)
+	public void testMismatchedColumnTypes() throws SerDeException {
+		new JsonQuerySerDe().initialize(new Configuration(false), newTableProperties(".", "a,b", "int"));
+	}
+
+	@Test(expected = SerDeException.class)
+	public void testMissingColumns() throws SerDeException {
+		final Properties tbl = new Properties();
+		tbl.setProperty(JsonQuerySerDe.JQ, ".");
+		new JsonQuerySerDe().initialize(new Configuration(false), tbl);
+	}
+}
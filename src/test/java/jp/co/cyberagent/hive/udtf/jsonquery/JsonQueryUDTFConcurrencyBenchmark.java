@@ -0,0 +1,129 @@
+package jp.co.cyberagent.hive.udtf.jsonquery;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.io.Text;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonParser.Feature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.InputParser;
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.JsonQueryConf;
+
+/**
+ * Compares the throughput of parsing inputs on many threads, one UDTF instance per thread as in LLAP, with a Jackson
+ * ObjectMapper per instance (as before the shared configuration) and with the shared reader through {@link InputParser}.
+ * One in ten inputs is corrupt, so that building {@code $error} is measured as well.
+ *
+ * Not run by {@code mvn test}. Run it with the test classpath:
+ *
+ * <pre>
+ * java -cp "target/classes:target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)" \
+ *     jp.co.cyberagent.hive.udtf.jsonquery.JsonQueryUDTFConcurrencyBenchmark [THREADS [ROWS [ROUNDS]]]
+ * </pre>
+ */
+public class JsonQueryUDTFConcurrencyBenchmark {
+	private static final String TEST_JSON = "{\"region\": \"Asia\", \"timezones\": [{\"name\": \"Tokyo\", \"offset\": 540}, {\"name\": \"Taipei\", \"offset\": 480}, {\"name\": \"Kamchatka\", \"offset\": 720}]}";
+	private static final String CORRUPT_JSON = "{\"region\": \"Asia\", \"timezones\": [corrupt";
+
+	private interface Instance {
+		JsonNode parse(Text text);
+	}
+
+	private static class PerInstanceMapper implements Instance {
+		private final ObjectMapper mapper = new ObjectMapper(new JsonFactory().enable(Feature.ALLOW_UNQUOTED_CONTROL_CHARS));
+
+		@Override
+		public JsonNode parse(final Text text) {
+			final String jsonText = text.toString();
+			try (final JsonParser parser = mapper.getFactory().createParser(jsonText)) {
+				final JsonNode json = mapper.readTree(parser);
+				if (parser.nextToken() != null)
+					throw new JsonParseException(parser, "trailing characters");
+				return json;
+			} catch (final Exception e) {
+				return mapper.valueToTree(new ErrorObject(e.getMessage(), e.getClass().getName(), jsonText));
+			}
+		}
+	}
+
+	private static class ErrorObject {
+		public String message;
+		public String clazz;
+		public String input;
+
+		public ErrorObject(final String message, final String clazz, final String input) {
+			this.message = message;
+			this.clazz = clazz;
+			this.input = input;
+		}
+	}
+
+	private static class SharedReader implements Instance {
+		private final InputParser parser = new InputParser(JsonQueryConf.DEFAULT);
+
+		@Override
+		public JsonNode parse(final Text text) {
+			try {
+				return parser.parse(text);
+			} catch (final Exception e) {
+				return parser.newErrorNode(e, text);
+			}
+		}
+	}
+
+	private static long run(final boolean shared, final int rows) {
+		final Instance instance = shared ? new SharedReader() : new PerInstanceMapper();
+		final Text json = new Text(TEST_JSON);
+		final Text corrupt = new Text(CORRUPT_JSON);
+		long sum = 0;
+		for (int i = 0; i < rows; ++i)
+			sum += instance.parse(i % 10 == 9 ? corrupt : json).size();
+		return sum;
+	}
+
+	private static double measure(final ExecutorService executor, final int threads, final int rows, final boolean shared) throws Exception {
+		final long start = System.nanoTime();
+		final List<Future<Long>> futures = new ArrayList<>();
+		for (int i = 0; i < threads; ++i) {
+			futures.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return run(shared, rows);
+				}
+			}));
+		}
+		for (final Future<Long> future : futures)
+			future.get();
+		return (double) threads * rows / ((System.nanoTime() - start) / 1e9);
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		final int rows = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+		final int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			// the first round of each is a warm-up and is not reported.
+			for (int round = 0; round <= rounds; ++round) {
+				final double perInstance = measure(executor, threads, rows, false);
+				final double shared = measure(executor, threads, rows, true);
+				if (round > 0)
+					System.out.printf("round %d: threads=%d per-instance mapper=%.0f rows/sec shared reader=%.0f rows/sec (%+.1f%%)%n",
+							round, threads, perInstance, shared, 100.0 * (shared - perInstance) / perInstance);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
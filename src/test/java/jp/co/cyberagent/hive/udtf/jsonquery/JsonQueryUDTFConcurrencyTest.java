@@ -0,0 +1,75 @@
+package jp.co.cyberagent.hive.udtf.jsonquery;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.hive.ql.metadata.HiveException;
+import org.apache.hadoop.hive.ql.udf.generic.Collector;
+import org.apache.hadoop.hive.serde2.objectinspector.ObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
+import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
+import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+/**
+ * Runs many UDTF instances concurrently, one per thread as in LLAP, to check that instances sharing the process-wide
+ * Jackson configuration produce correct results. See {@link JsonQueryUDTFConcurrencyBenchmark} for the throughput.
+ */
+public class JsonQueryUDTFConcurrencyTest {
+	private static final int THREADS = 16;
+	private static final int ROWS = 1000;
+
+	private static final String TEST_JSON = "{\"region\": \"Asia\", \"timezones\": [{\"name\": \"Tokyo\", \"offset\": 540}, {\"name\": \"Taipei\", \"offset\": 480}, {\"name\": \"Kamchatka\", \"offset\": 720}]}";
+
+	private static long run() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text(".region as $region | .timezones[] | {name: ($region + \"/\" + .name), offset}")),
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text("name:string")),
+				PrimitiveObjectInspectorFactory.getPrimitiveWritableConstantObjectInspector(TypeInfoFactory.stringTypeInfo, new Text("offset:int")),
+		});
+
+		final HivePath offsetPath = new HivePath(oi, ".offset");
+		final long[] sum = new long[1];
+		sut.setCollector(new Collector() {
+			@Override
+			public void collect(Object input) throws HiveException {
+				sum[0] += offsetPath.extract(input).asInt();
+			}
+		});
+
+		final Object in = PrimitiveObjectInspectorFactory.writableStringObjectInspector.create(TEST_JSON);
+		for (int i = 0; i < ROWS; ++i)
+			sut.process(new Object[] { in });
+		sut.close();
+		return sum[0];
+	}
+
+	@Test
+	public void testConcurrentInstances() throws Exception {
+		final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			final List<Future<Long>> futures = new ArrayList<>();
+			for (int i = 0; i < THREADS; ++i) {
+				futures.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						return run();
+					}
+				}));
+			}
+			for (final Future<Long> future : futures)
+				assertEquals((540L + 480L + 720L) * ROWS, (long) future.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -1,12 +1,17 @@
 package jp.co.cyberagent.hive.udtf.jsonquery;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
+import org.apache.hadoop.hive.ql.exec.MapredContext;
 import org.apache.hadoop.hive.ql.metadata.HiveException;
 import org.apache.hadoop.hive.ql.udf.generic.Collector;
 import org.apache.hadoop.hive.ql.udf.generic.GenericUDTF;
@@ -16,8 +21,11 @@ import org.apache.hadoop.hive.serde2.objectinspector.StructObjectInspector;
 import org.apache.hadoop.hive.serde2.objectinspector.primitive.PrimitiveObjectInspectorFactory;
 import org.apache.hadoop.hive.serde2.typeinfo.TypeInfoFactory;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
 import org.junit.Test;
 
+import jp.co.cyberagent.hive.udtf.jsonquery.internal.Profiler;
+
 public class JsonQueryUDTFTest {
 	private static List<Object> evaluate(final GenericUDTF udtf, final Object... ins) throws HiveException {
 		final List<Object> out = new ArrayList<>();
@@ -32,6 +40,26 @@ public class JsonQueryUDTFTest {
 		return out;
 	}
 
+	private static void configure(final GenericUDTF udtf, final String... keyValues) {
+		final JobConf conf = new JobConf(false);
+		for (int i = 0; i + 1 < keyValues.length; i += 2)
+			conf.set(keyValues[i], keyValues[i + 1]);
+		udtf.configure(MapredContext.init(true, conf));
+	}
+
+	private static List<Object> evaluateRows(final GenericUDTF udtf, final Object[]... rows) throws HiveException {
+		final List<Object> out = new ArrayList<>();
+		udtf.setCollector(new Collector() {
+			@Override
+			public void collect(Object input) throws HiveException {
+				out.add(input);
+			}
+		});
+		for (Object[] row : rows)
+			udtf.process(row);
+		return out;
+	}
+
 	private static final String TEST_JSON = "{\"region\": \"Asia\", \"timezones\": [{\"name\": \"Tokyo\", \"offset\": 540}, {\"name\": \"Taipei\", \"offset\": 480}, {\"name\": \"Kamchatka\", \"offset\": 720}]}";
 
 	private static ConstantObjectInspector toConstantOI(final String text) {
@@ -282,4 +310,427 @@ public class JsonQueryUDTFTest {
 		assertEquals(10, new HivePath(oi, ".foo").extract(results.get(0)).asInt());
 		assertTrue(new HivePath(oi, ".bar").extract(results.get(0)).isNull());
 	}
+
+	@Test
+	public void testLargeInputs() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI(".text | length"),
+				toConstantOI("int"),
+		});
+
+		final StringBuilder small = new StringBuilder();
+		final StringBuilder large = new StringBuilder();
+		for (int i = 0; i < 100; ++i)
+			small.append("0123456789");
+		for (int i = 0; i < 100000; ++i)
+			large.append("0123456789");
+
+		final List<Object> results = evaluate(sut,
+				toObject("{\"text\": \"" + large + "\"}"),
+				toObject("{\"text\": \"" + small + "\"}"),
+				toObject("{\"text\": \"" + large + "\"}"));
+		assertEquals(3, results.size());
+
+		assertEquals(1000000, new HivePath(oi, ".col1").extract(results.get(0)).asInt());
+		assertEquals(1000, new HivePath(oi, ".col1").extract(results.get(1)).asInt());
+		assertEquals(1000000, new HivePath(oi, ".col1").extract(results.get(2)).asInt());
+
+		// the first segment of the text buffer is allocated by the first row and reused by the other two. the further
+		// segments of the large values are not recycled, so they do not show up here.
+		assertEquals(1, sut.bufferRecycler().misses());
+		assertEquals(2, sut.bufferRecycler().hits());
+	}
+
+	@Test
+	public void testMalformedUtf8() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("if $error then $error.message else .a end"),
+				toConstantOI("string"),
+		});
+
+		// malformed sequences are replaced with U+FFFD as Text#toString() does, instead of making the input an $error.
+		final Text text = new Text();
+		text.set(new byte[] { '{', '"', 'a', '"', ':', '"', 'x', (byte) 0xff, 'y', '"', '}' });
+		final List<Object> results = evaluate(sut, text);
+		assertEquals(1, results.size());
+		assertEquals("x\uFFFDy", new HivePath(oi, ".col1").extract(results.get(0)).asString());
+		assertEquals(0, sut.inputErrors());
+
+		// valid UTF-8, including a 4-byte sequence, which is not valid JSON is still an $error.
+		final List<Object> errors = evaluate(sut, toObject("{\"a\": \"\uD83D\uDE00\" corrupt"));
+		assertEquals(1, errors.size());
+		assertEquals(1, sut.inputErrors());
+	}
+
+	@Test
+	public void testInputBytesLimit() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.limit.input.bytes", "10");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("if $error then $error.message else . end"),
+				toConstantOI("string"),
+		});
+
+		final List<Object> results = evaluate(sut, toObject("\"short\""), toObject("\"very long string\""));
+		assertEquals(2, results.size());
+		assertEquals("short", new HivePath(oi, ".col1").extract(results.get(0)).asString());
+		assertEquals("jq.limit.input.bytes exceeded (18 > 10)", new HivePath(oi, ".col1").extract(results.get(1)).asString());
+	}
+
+	@Test
+	public void testInputBytesLimitErrorInput() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.limit.input.bytes", "10");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("$error.input"),
+				toConstantOI("string"),
+		});
+
+		// the 10th byte is in the middle of U+3046, so $error.input stops before it.
+		final List<Object> results = evaluate(sut, toObject("\"a\u3042\u3044\u3046\""));
+		assertEquals(1, results.size());
+		assertEquals("\"a\u3042\u3044", new HivePath(oi, ".col1").extract(results.get(0)).asString());
+	}
+
+	@Test
+	public void testNodesLimit() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.limit.nodes", "4", "jq.limit.nodes.action", "truncate");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("length"),
+				toConstantOI("int"),
+		});
+
+		final List<Object> results = evaluate(sut, toObject("[1, 2, 3]"), toObject("[1, 2, 3, 4]"), toObject("{\"a\": [1], \"b\": 2}"));
+		assertEquals(2, results.size());
+		assertEquals(3, new HivePath(oi, ".col1").extract(results.get(0)).asInt());
+		assertEquals(2, new HivePath(oi, ".col1").extract(results.get(1)).asInt());
+	}
+
+	@Test
+	public void testNodesLimitErrorInput() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.limit.nodes", "4");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("$error.input | length"),
+				toConstantOI("int"),
+		});
+
+		// $error.input of an input rejected by any limit is cut at 64 KiB.
+		final StringBuilder large = new StringBuilder("[0");
+		for (int i = 0; i < 100000; ++i)
+			large.append(", 0");
+		large.append(']');
+		final List<Object> results = evaluate(sut, toObject(large.toString()));
+		assertEquals(1, results.size());
+		assertEquals(64 * 1024, new HivePath(oi, ".col1").extract(results.get(0)).asInt());
+	}
+
+	@Test
+	public void testOutputsLimit() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.limit.outputs", "2", "jq.limit.outputs.action", "truncate");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI(".[]"),
+				toConstantOI("int"),
+		});
+
+		final List<Object> results = evaluate(sut, toObject("[1, 2, 3]"));
+		assertEquals(2, results.size());
+		assertEquals(1, new HivePath(oi, ".col1").extract(results.get(0)).asInt());
+		assertEquals(2, new HivePath(oi, ".col1").extract(results.get(1)).asInt());
+	}
+
+	@Test
+	public void testOutputsLimitFail() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.limit.outputs", "2", "jq.limit.outputs.action", "fail");
+
+		@SuppressWarnings("unused")
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI(".[]"),
+				toConstantOI("int"),
+		});
+
+		try {
+			evaluate(sut, toObject("[1, 2, 3]"));
+			fail("should fail");
+		} catch (final HiveException e) {
+			assertTrue(e.getMessage().contains("jq.limit.outputs exceeded (3 > 2)"));
+		}
+	}
+
+	@Test
+	public void testNumericCoercions() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("{a: \"12\", b: \"x\", c: 2.7, e: \"1.5\"}"),
+				toConstantOI("a:int"),
+				toConstantOI("b:int"),
+				toConstantOI("c:int"),
+				toConstantOI("e:double"),
+		});
+
+		final List<Object> results = evaluate(sut, toObject(null));
+		assertEquals(1, results.size());
+
+		final Object obj = results.get(0);
+		assertEquals(12, new HivePath(oi, ".a").extract(obj).asInt());
+		assertEquals(0, new HivePath(oi, ".b").extract(obj).asInt());
+		assertEquals(2, new HivePath(oi, ".c").extract(obj).asInt());
+		assertEquals(0, Double.compare(1.5, new HivePath(oi, ".e").extract(obj).asDouble()));
+	}
+
+	@Test
+	public void testStrictNumericCoercions() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.coerce.strings", "strict", "jq.coerce.overflow", "saturate", "jq.coerce.fraction", "round");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("{a: \"12\", b: \"x\", c: 2.5, d: 4294967297, e: -2.5, f: 1e300}"),
+				toConstantOI("a:int"),
+				toConstantOI("b:int"),
+				toConstantOI("c:int"),
+				toConstantOI("d:int"),
+				toConstantOI("e:bigint"),
+				toConstantOI("f:float"),
+		});
+
+		final List<Object> results = evaluate(sut, toObject(null));
+		assertEquals(1, results.size());
+
+		final Object obj = results.get(0);
+		assertEquals(12, new HivePath(oi, ".a").extract(obj).asInt());
+		assertTrue(new HivePath(oi, ".b").extract(obj).isNull());
+		assertEquals(3, new HivePath(oi, ".c").extract(obj).asInt());
+		assertEquals(Integer.MAX_VALUE, new HivePath(oi, ".d").extract(obj).asInt());
+		assertEquals(-3L, new HivePath(oi, ".e").extract(obj).asLong());
+		assertEquals(0, Float.compare(Float.MAX_VALUE, new HivePath(oi, ".f").extract(obj).asFloat()));
+	}
+
+	@Test
+	public void testInvalidCoercionPolicy() {
+		try {
+			configure(new JsonQueryUDTF(), "jq.coerce.strings", "loose");
+			fail("must fail on an unknown policy");
+		} catch (final IllegalArgumentException e) {
+			assertEquals("unknown strings policy: loose (must be one of lenient, strict or null)", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testInternedMapKeys() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.intern.keys.max", "1");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("."),
+				toConstantOI("map<string,int>"),
+		});
+
+		final List<Object> results = evaluate(sut, toObject("{\"foo\": 1, \"bar\": 2}"), toObject("{\"foo\": 3, \"bar\": 4}"));
+		assertEquals(2, results.size());
+
+		assertEquals(1, new HivePath(oi, ".col1[\"foo\"]").extract(results.get(0)).asInt());
+		assertEquals(2, new HivePath(oi, ".col1[\"bar\"]").extract(results.get(0)).asInt());
+		assertEquals(3, new HivePath(oi, ".col1[\"foo\"]").extract(results.get(1)).asInt());
+		assertEquals(4, new HivePath(oi, ".col1[\"bar\"]").extract(results.get(1)).asInt());
+
+		// only the first key fits in the dictionary, so only its Text is shared between the rows.
+		assertSame(findKey(results.get(0), "foo"), findKey(results.get(1), "foo"));
+		assertNotSame(findKey(results.get(0), "bar"), findKey(results.get(1), "bar"));
+	}
+
+	private static Object findKey(final Object row, final String key) {
+		for (final Object k : ((Map<?, ?>) ((Object[]) row)[0]).keySet())
+			if (k.toString().equals(key))
+				return k;
+		throw new AssertionError("no key: " + key);
+	}
+
+	@Test
+	public void testDynamicQuery() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("int"),
+		});
+		assertEquals("struct<col1:int>", oi.getTypeName());
+
+		final List<Object> results = evaluateRows(sut,
+				new Object[] { toObject(TEST_JSON), toObject(".timezones[0].offset") },
+				new Object[] { toObject(TEST_JSON), toObject(".timezones | length") },
+				new Object[] { toObject(TEST_JSON), null },
+				new Object[] { toObject(TEST_JSON), toObject(".timezones[0].offset") });
+		assertEquals(3, results.size());
+
+		assertEquals(540, new HivePath(oi, ".col1").extract(results.get(0)).asInt());
+		assertEquals(3, new HivePath(oi, ".col1").extract(results.get(1)).asInt());
+		assertEquals(540, new HivePath(oi, ".col1").extract(results.get(2)).asInt());
+	}
+
+	@Test
+	public void testDynamicQueryInvalid() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+
+		@SuppressWarnings("unused")
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("int"),
+		});
+
+		try {
+			evaluateRows(sut, new Object[] { toObject(TEST_JSON), toObject(".[") });
+			fail("should fail");
+		} catch (final HiveException e) {
+			assertTrue(e.getMessage().startsWith("JQ is invalid"));
+		}
+	}
+
+	@Test
+	public void testDynamicQuerySkipInvalid() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.dynamic.skip.invalid", "true");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("int"),
+		});
+
+		final List<Object> results = evaluateRows(sut,
+				new Object[] { toObject(TEST_JSON), toObject(".[") },
+				new Object[] { toObject(TEST_JSON), toObject(".[") },
+				new Object[] { toObject(TEST_JSON), toObject(".timezones | length") });
+		assertEquals(1, results.size());
+		assertEquals(3, new HivePath(oi, ".col1").extract(results.get(0)).asInt());
+
+		// the invalid program is compiled only once.
+		assertEquals(2, sut.queryCache().misses());
+		assertEquals(1, sut.queryCache().failures());
+		assertEquals(1, sut.queryCache().failureHits());
+		assertEquals(0, sut.queryCache().hits());
+	}
+
+	@Test
+	public void testProfile() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.profile", "true", "jq.profile.sample.interval", "2");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI(".region as $region | .timezones | sort_by(.offset)[] | select(.offset > 500) | {name: ($region + \"/\" + .name), offset}"),
+				toConstantOI("name:string"),
+				toConstantOI("offset:int"),
+		});
+
+		final List<Object> results = evaluate(sut, toObject(TEST_JSON), toObject(TEST_JSON));
+		assertEquals(4, results.size());
+
+		assertEquals("Asia/Tokyo", new HivePath(oi, ".name").extract(results.get(0)).asString());
+		assertEquals(540, new HivePath(oi, ".offset").extract(results.get(0)).asInt());
+		assertEquals("Asia/Kamchatka", new HivePath(oi, ".name").extract(results.get(1)).asString());
+		assertEquals(720, new HivePath(oi, ".offset").extract(results.get(1)).asInt());
+
+		// the first entry is the whole program, and each of the 3 timezones of both rows goes through select.
+		final List<Profiler.Entry> entries = sut.profiler().entries();
+		assertEquals(2, entries.get(0).calls());
+		assertEquals(4, entries.get(0).outputs());
+		boolean selectFound = false;
+		for (final Profiler.Entry entry : entries) {
+			if (entry.expression.startsWith("select")) {
+				assertEquals(6, entry.calls());
+				assertEquals(4, entry.outputs());
+				selectFound = true;
+			}
+		}
+		assertTrue(selectFound);
+
+		sut.close();
+	}
+
+	private static List<String> evaluateProfiled(final boolean profile, final String jq, final String json) throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.profile", Boolean.toString(profile), "jq.profile.sample.interval", "1");
+
+		final StructObjectInspector oi = sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI(jq),
+				toConstantOI("string"),
+		});
+
+		final List<String> results = new ArrayList<>();
+		for (final Object result : evaluate(sut, toObject(json)))
+			results.add((String) new HivePath(oi, ".col1").extract(result).asString());
+		if (profile)
+			assertFalse(jq, sut.profiler().entries().isEmpty());
+		return results;
+	}
+
+	@Test
+	public void testProfileSameResults() throws HiveException {
+		final String json = "{\"a\": 1, \"b\": {\"c\": [1, 2]}, \"xs\": [1, 2, 3]}";
+		final String[] programs = {
+				"def f(x): x * 2; [.xs[] | f(.)]",
+				"def g: .a + 1; g",
+				"reduce .xs[] as $x (0; . + $x)",
+				".a |= . + 1",
+				".b.c[] |= . * 10",
+				"del(.a)",
+				"del(.b.c[0])",
+				"[path(..)]",
+				"path(.b.c[1])",
+		};
+
+		// instrumenting the nodes must not change what the program does.
+		for (final String jq : programs)
+			assertEquals(jq, evaluateProfiled(false, jq, json), evaluateProfiled(true, jq, json));
+	}
+
+	@Test
+	public void testProfileDynamicQueryEviction() throws HiveException {
+		final JsonQueryUDTF sut = new JsonQueryUDTF();
+		configure(sut, "jq.profile", "true", "jq.dynamic.cache.size", "1");
+
+		sut.initialize(new ObjectInspector[] {
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				PrimitiveObjectInspectorFactory.writableStringObjectInspector,
+				toConstantOI("int"),
+		});
+
+		evaluateRows(sut, new Object[] { toObject(TEST_JSON), toObject(".timezones[0].offset") });
+		final int entries = sut.profiler().entries().size();
+
+		// each program evicts the other, and its profile is dropped with it.
+		for (int i = 0; i < 10; ++i) {
+			evaluateRows(sut,
+					new Object[] { toObject(TEST_JSON), toObject(".timezones | length") },
+					new Object[] { toObject(TEST_JSON), toObject(".timezones[0].offset") });
+		}
+		assertEquals(entries, sut.profiler().entries().size());
+	}
 }
@@ -0,0 +1,145 @@
+package jp.co.cyberagent.hive.udtf.jsonquery.internal.builtins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.DoubleNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import net.thisptr.jackson.jq.JsonQuery;
+import net.thisptr.jackson.jq.Scope;
+import net.thisptr.jackson.jq.exception.JsonQueryException;
+
+/**
+ * Checks that the replacements produce exactly the same results as the jackson-jq builtins.
+ */
+public class BuiltinsTest {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private static final String[][] CASES = {
+			{ "sort_by(.a)", "[{\"a\": 3, \"b\": 1}, {\"a\": 1, \"b\": 2}, {\"a\": 2.0, \"b\": 3}, {\"a\": 1.0, \"b\": 4}]" },
+			{ "sort_by(.a)", "[{\"a\": \"b\"}, {\"a\": \"a\"}, {\"a\": \"c\"}, {\"a\": \"a\", \"x\": 1}]" },
+			{ "sort_by(.a)", "[{\"a\": \"b\"}, {\"a\": 1}, {\"a\": null}, {\"a\": [1]}, {\"a\": {\"k\": 1}}, {\"a\": true}, {\"a\": false}, {}]" },
+			{ "sort_by(.a, .b)", "[{\"a\": 1, \"b\": 2}, {\"a\": 1, \"b\": 1}, {\"a\": 0, \"b\": 5}]" },
+			{ "sort_by(.[])", "[[2, 1], [1], [1, 2], []]" },
+			{ "group_by(.a)", "[{\"a\": 3, \"b\": 1}, {\"a\": 1, \"b\": 2}, {\"a\": 3, \"b\": 3}, {\"a\": 1.0, \"b\": 4}]" },
+			{ "group_by(.a)", "[{\"a\": \"x\", \"b\": 1}, {\"a\": \"y\", \"b\": 2}, {\"a\": \"x\", \"b\": 3}]" },
+			{ "group_by(.a)", "[{\"a\": {\"p\": 1, \"q\": 2}}, {\"a\": {\"q\": 2, \"p\": 1}}, {\"a\": [1, 2]}, {\"a\": null}]" },
+			{ "sort_by(.a)", "[{\"a\": 0}, {\"a\": -0.0}, {\"a\": 0.0}]" },
+			{ "sort_by(.a)", "[{\"a\": 0.0, \"b\": 1}, {\"a\": -0.0, \"b\": 2}, {\"a\": 0, \"b\": 3}, {\"a\": -0.0, \"b\": 4}]" },
+			{ "sort_by(.a, .b)", "[{\"a\": 0, \"b\": -0.0}, {\"a\": -0.0, \"b\": 0}]" },
+			{ "group_by(.a)", "[{\"a\": 0}, {\"a\": -0.0}, {\"a\": 0.0}]" },
+			{ "group_by(.a)", "[{\"a\": [0]}, {\"a\": [-0.0]}, {\"a\": [0.0]}]" },
+			{ "unique_by(.a)", "[{\"a\": 3, \"b\": 1}, {\"a\": 1, \"b\": 2}, {\"a\": 3, \"b\": 3}]" },
+			{ "unique_by(.a)", "[{\"a\": 0}, {\"a\": -0.0}, {\"a\": 0.0}]" },
+			{ "unique_by(length)", "[\"chunky\", \"bacon\", \"kitten\", \"cicada\", \"asparagus\"]" },
+			{ "[.[] | test(\"a.c\")]", "[\"abc\", \"ABC\", \"a\\rc\", \"a\\nc\"]" },
+			{ "[.[] | test(\"b(c|x)+d?\")]", "[\"abcxd\", \"abd\", \"bx\"]" },
+			{ "[.[] | test(\"[^0-9]a\\\\.\"; \"g\")]", "[\"xa.\", \"1a.\", \"xab\"]" },
+			{ "[.[] | test(\"^a\")]", "[\"abc\", \"b\\nabc\"]" },
+			{ "[.[] | test(\"c$\")]", "[\"abc\", \"abc\\nd\"]" },
+			{ "[.[] | test(\"a.c\")]", "[\"abc\", \"ABC\", \"xyz\", \"a\\nc\"]" },
+			{ "[.[] | test(\"a.c\"; \"i\")]", "[\"abc\", \"ABC\", \"xyz\", \"a\\nc\"]" },
+			{ "[.[] | test(\"a.c\"; \"s\")]", "[\"abc\", \"ABC\", \"xyz\", \"a\\nc\"]" },
+			{ "[.[] | test([\"A B C\", \"ix\"])]", "[\"abc\", \"ABC\", \"xyz\"]" },
+	};
+
+	private static List<JsonNode> apply(final Scope scope, final String program, final String input) throws IOException {
+		return JsonQuery.compile(program).apply(scope, MAPPER.readTree(input));
+	}
+
+	@Test
+	public void testSameResultsAsOriginals() throws IOException {
+		final Scope optimized = new Scope();
+		Builtins.register(optimized);
+
+		for (final String[] c : CASES)
+			assertEquals(c[0] + " on " + c[1], apply(new Scope(), c[0], c[1]), apply(optimized, c[0], c[1]));
+	}
+
+	@Test
+	public void testPatternCacheAcrossCalls() throws IOException {
+		final Scope optimized = new Scope();
+		Builtins.register(optimized);
+
+		for (int i = 0; i < 3; ++i)
+			assertEquals(MAPPER.readTree("[false, true, false]"), apply(optimized, "map(test(\"[0-9]a\"))", "[\"123\", \"12a\", \"0\"]").get(0));
+	}
+
+	@Test
+	public void testInvalidFlagsAfterCachedRegex() throws IOException {
+		final Scope optimized = new Scope();
+		Builtins.register(optimized);
+
+		// "i" + "x/y" and "i/x" + "y" must not share a cache entry; the second one has invalid flags.
+		apply(optimized, "test(\"x/y\"; \"i\")", "\"x/y\"");
+		try {
+			apply(optimized, "test(\"y\"; \"i/x\")", "\"x/y\"");
+			fail("must fail on invalid flags");
+		} catch (final JsonQueryException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUnsupportedRegexEvaluatedOnce() throws IOException {
+		final int[] evaluations = new int[1];
+		final JsonQuery regex = new JsonQuery() {
+			@Override
+			public List<JsonNode> apply(final Scope scope, final JsonNode in) {
+				++evaluations[0];
+				return Collections.<JsonNode> singletonList(TextNode.valueOf("^a"));
+			}
+		};
+
+		final Scope scope = new Scope();
+		final TestFunction sut = new TestFunction(scope.getFunction("test", 1));
+		for (int i = 0; i < 3; ++i)
+			assertEquals(Collections.singletonList(BooleanNode.TRUE), sut.apply(scope, Collections.singletonList(regex), TextNode.valueOf("abc")));
+		// twice by the first call, which finds that the engine is needed, and once by each call after it.
+		assertEquals(4, evaluations[0]);
+	}
+
+	@Test
+	public void testNumberOrdering() {
+		// the order of the jackson-jq builtins, with a hash consistent with it: -0.0 is less than 0.0, and NaN is the
+		// greatest number and equal to itself.
+		assertTrue(JsonNodeOrdering.compareNumbers(-0.0, 0.0) < 0);
+		assertTrue(JsonNodeOrdering.compareNumbers(Double.NaN, Double.POSITIVE_INFINITY) > 0);
+		assertEquals(0, JsonNodeOrdering.compareNumbers(Double.NaN, Double.NaN));
+
+		final JsonNodeOrdering.Key nan = new JsonNodeOrdering.Key(DoubleNode.valueOf(Double.NaN));
+		assertEquals(nan, new JsonNodeOrdering.Key(DoubleNode.valueOf(Double.NaN)));
+		assertEquals(nan.hashCode(), new JsonNodeOrdering.Key(DoubleNode.valueOf(Double.NaN)).hashCode());
+		assertEquals(new JsonNodeOrdering.Key(DoubleNode.valueOf(0.0)), new JsonNodeOrdering.Key(IntNode.valueOf(0)));
+		assertEquals(new JsonNodeOrdering.Key(DoubleNode.valueOf(0.0)).hashCode(), new JsonNodeOrdering.Key(IntNode.valueOf(0)).hashCode());
+		assertNotEquals(new JsonNodeOrdering.Key(DoubleNode.valueOf(-0.0)), new JsonNodeOrdering.Key(IntNode.valueOf(0)));
+	}
+
+	@Test
+	public void testSupportedRegex() {
+		assertTrue(TestFunction.isSupportedRegex("a.c"));
+		assertTrue(TestFunction.isSupportedRegex("(ab|cd)+e?"));
+		assertTrue(TestFunction.isSupportedRegex("[^0-9]a\\."));
+		assertFalse(TestFunction.isSupportedRegex("^abc$"));
+		assertFalse(TestFunction.isSupportedRegex("\\d+"));
+		assertFalse(TestFunction.isSupportedRegex("\\h"));
+		assertFalse(TestFunction.isSupportedRegex("a{2}"));
+		assertFalse(TestFunction.isSupportedRegex("(?i)a"));
+		assertFalse(TestFunction.isSupportedRegex("a*?"));
+		assertFalse(TestFunction.isSupportedRegex("[[:alpha:]]"));
+	}
+}